@@ -30,7 +30,14 @@
  */
 package com.github.tarsa.tarsalzp;
 
+import com.github.tarsa.tarsalzp.core.ArchiveCoder;
+import com.github.tarsa.tarsalzp.core.Benchmarks;
 import com.github.tarsa.tarsalzp.core.Coder;
+import com.github.tarsa.tarsalzp.core.Encoder;
+import com.github.tarsa.tarsalzp.core.LiteralCoderLayout;
+import com.github.tarsa.tarsalzp.core.OptionsTuner;
+import com.github.tarsa.tarsalzp.core.Settings;
+import com.github.tarsa.tarsalzp.core.TableStorage;
 import com.github.tarsa.tarsalzp.gui.MainFrame;
 import com.github.tarsa.tarsalzp.gui.OptionsBean;
 import java.io.BufferedInputStream;
@@ -38,12 +45,19 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Entry point.
@@ -62,10 +76,40 @@ public class Main {
         err("\t[no command]  - print help and show GUI");
         err("\tencode        - encode input");
         err("\tdecode        - decode compressed stream");
+        err("\ttest          - decode compressed stream without writing "
+                + "the result,");
+        err("\t                verifying checksums if the stream has them");
+        err("\t                (archives given by `fi` are verified file by "
+                + "file)");
+        err("\tarchive       - encode all files in a directory tree into an "
+                + "archive");
+        err("\textract       - decode files from an archive into a "
+                + "directory");
+        err("\tlist          - show files in an archive (uncompressed size, "
+                + "compressed size, path)");
+        err("\tautotune      - find encoding options giving the smallest "
+                + "output on a sample");
+        err("\t                of file given by `fi` and print them");
         err("\tshowOptions   - read and show compression options only");
+        err("\tbenchmark     - measure throughput on generated corpora");
         err("General options:");
         err("\tfi=fileName   - read from file `fileName` (all modes)");
         err("\tfo=fileName   - write to file `fileName` (encode and decode)");
+        err("\tthreads=n     - number of threads coding blocks (encode and "
+                + "decode)");
+        err("\tmmap=true     - memory map file given by `fi` and write to "
+                + "`fo` directly");
+        err("\t                (encode without blocks and decode)");
+        err("\ttables=kind   - storage of LZP tables (one of: "
+                + Arrays.toString(TableStorage.values()) + ")");
+        err("\t                " + TableStorage.OffHeap + " tables are limited "
+                + "by -XX:MaxDirectMemorySize");
+        err("\t                instead of -Xmx (encode and decode)");
+        err("\tlazyTables=" + Settings.Default.isLazyTables()
+                + " - initialize heap LZP tables page by page on first write");
+        err("\tliteralCoder=" + Settings.Default.getLiteralCoderLayout()
+                + " - layout of literal coder frequencies (one of: "
+                + Arrays.toString(LiteralCoderLayout.values()) + ")");
         err("Encoding only options (with default values):");
         final OptionsBean options = new OptionsBean();
         err("\tlzpLowContextLength=" + options.getLzpLowContextLength());
@@ -76,6 +120,44 @@ public class Main {
         err("\tliteralCoderInit=" + options.getLiteralCoderInit());
         err("\tliteralCoderStep=" + options.getLiteralCoderStep());
         err("\tliteralCoderLimit=" + options.getLiteralCoderLimit());
+        err("\tmultiplicativeHash=" + options.isMultiplicativeHash()
+                + " - hash LZP contexts with one multiplication (streams "
+                + "need a decoder");
+        err("\t                that knows the flag)");
+        err("\tchecksum=" + options.isChecksum()
+                + " - append CRC32C of uncompressed data, verified when "
+                + "decoding");
+        err("\tstoredBlocks=" + options.isStoredBlocks()
+                + " - copy incompressible data as it is instead of range "
+                + "coding it (streams");
+        err("\t                need a decoder that knows the flag)");
+        err("\tblockSize=" + Coder.DefaultBlockSize);
+        err("\tengine=" + Encoder.Engine.Sequential + " (one of: "
+                + Arrays.toString(Encoder.Engine.values()) + ")");
+        err("Specifying `blockSize` or `threads` when encoding produces "
+                + "a multi-block container");
+        err("if the input does not fit in a single block. Every thread "
+                + "allocates its own model.");
+        err("Archive options (archive, extract and list):");
+        err("\tdir=name      - directory to archive or to extract to");
+        err("\tfile=path     - extract only file with given path in archive");
+        err("\t`fi` names the archive for extract and list, `fo` for "
+                + "archive. Files are coded");
+        err("\tconcurrently by `threads` threads, largest first.");
+        err("Autotune options (encoding options set initial values):");
+        err("\tsampleSize=" + OptionsTuner.DefaultSampleSize
+                + " - number of bytes sampled from the input");
+        err("\tmemory=n      - maximum size of model tables in MiB (defaults "
+                + "to size taken by");
+        err("\t                initial options), `threads` models are "
+                + "allocated at once");
+        err("\tminSpeed=n    - minimum modelling speed in MiB/s per thread");
+        err("Benchmark only options (with default values):");
+        err("\tfilter=       - run benchmarks with names containing the value");
+        err("\tsize=" + Benchmarks.DefaultCorpusSize
+                + "    - size of every generated corpus");
+        err("\twarmup=" + Benchmarks.DefaultWarmupIterations);
+        err("\titerations=" + Benchmarks.DefaultMeasuredIterations);
         err("Example program invocation (with increased heap size): ");
         err("\tjava -Xmx3500m -jar TarsaLZP.jar encode lzpHighMaskSize=30 "
                 + "< input > output");
@@ -106,6 +188,16 @@ public class Main {
         return optionsMap;
     }
 
+    private <E extends Enum<E>> E parseEnum(final Class<E> enumClass,
+            final String name) {
+        for (final E constant : enumClass.getEnumConstants()) {
+            if (constant.name().equalsIgnoreCase(name)) {
+                return constant;
+            }
+        }
+        return null;
+    }
+
     private static class EncoderCallback implements Coder.Callback {
 
         private final long fileSize;
@@ -143,6 +235,86 @@ public class Main {
         }
     }
 
+    /**
+     * Applies an option of encoded stream format to the bean.
+     *
+     * @return false if the option is not an encoding option
+     */
+    private boolean setEncodingOption(final OptionsBean optionsBean,
+            final String option, final String value) {
+        if ("lzpLowContextLength".equalsIgnoreCase(option)) {
+            optionsBean.setLzpLowContextLength(Integer.parseInt(value));
+        } else if ("lzpLowMaskSize".equalsIgnoreCase(option)) {
+            optionsBean.setLzpLowMaskSize(Integer.parseInt(value));
+        } else if ("lzpHighContextLength".equalsIgnoreCase(option)) {
+            optionsBean.setLzpHighContextLength(Integer.parseInt(value));
+        } else if ("lzpHighMaskSize".equalsIgnoreCase(option)) {
+            optionsBean.setLzpHighMaskSize(Integer.parseInt(value));
+        } else if ("literalCoderOrder".equalsIgnoreCase(option)) {
+            optionsBean.setLiteralCoderOrder(Integer.parseInt(value));
+        } else if ("literalCoderInit".equalsIgnoreCase(option)) {
+            optionsBean.setLiteralCoderInit(Integer.parseInt(value));
+        } else if ("literalCoderStep".equalsIgnoreCase(option)) {
+            optionsBean.setLiteralCoderStep(Integer.parseInt(value));
+        } else if ("literalCoderLimit".equalsIgnoreCase(option)) {
+            optionsBean.setLiteralCoderLimit(Integer.parseInt(value));
+        } else if ("multiplicativeHash".equalsIgnoreCase(option)) {
+            optionsBean.setMultiplicativeHash(Boolean.parseBoolean(value));
+        } else if ("checksum".equalsIgnoreCase(option)) {
+            optionsBean.setChecksum(Boolean.parseBoolean(value));
+        } else if ("storedBlocks".equalsIgnoreCase(option)) {
+            optionsBean.setStoredBlocks(Boolean.parseBoolean(value));
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Applies a runtime setting to the first element of the settings array.
+     * Prints an error and sets the element to null if the value is invalid.
+     *
+     * @return false if the option is not a settings option
+     */
+    private boolean setSettingsOption(final Settings[] settings,
+            final String option, final String value) {
+        if ("engine".equalsIgnoreCase(option)) {
+            final Encoder.Engine engine = parseEnum(Encoder.Engine.class,
+                    value);
+            if (engine == null) {
+                printError("Unknown engine: " + value);
+                settings[0] = null;
+            } else {
+                settings[0] = settings[0].withEngine(engine);
+            }
+        } else if ("tables".equalsIgnoreCase(option)) {
+            final TableStorage tableStorage = parseEnum(TableStorage.class,
+                    value);
+            if (tableStorage == null) {
+                printError("Unknown tables storage: " + value);
+                settings[0] = null;
+            } else {
+                settings[0] = settings[0].withTableStorage(tableStorage);
+            }
+        } else if ("lazyTables".equalsIgnoreCase(option)) {
+            settings[0] = settings[0].withLazyTables(
+                    Boolean.parseBoolean(value));
+        } else if ("literalCoder".equalsIgnoreCase(option)) {
+            final LiteralCoderLayout literalCoderLayout = parseEnum(
+                    LiteralCoderLayout.class, value);
+            if (literalCoderLayout == null) {
+                printError("Unknown literal coder layout: " + value);
+                settings[0] = null;
+            } else {
+                settings[0] = settings[0].withLiteralCoderLayout(
+                        literalCoderLayout);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
     private void encode(final Map<String, String> optionsMap)
             throws IOException {
         InputStream input = new BufferedInputStream(System.in, 64 * 1024);
@@ -151,41 +323,40 @@ public class Main {
         boolean standardOutput = true;
         Coder.Callback callback = null;
         final OptionsBean optionsBean = new OptionsBean();
+        int blockSize = Coder.DefaultBlockSize;
+        int threadsNumber = Runtime.getRuntime().availableProcessors();
+        boolean parallel = false;
+        final Settings[] settings = {Settings.Default};
+        FileInputStream fileInputStream = null;
+        String outputFileName = null;
+        boolean mapped = false;
         for (final String option : optionsMap.keySet()) {
             if ("fi".equalsIgnoreCase(option)) {
-                input = new BufferedInputStream(new FileInputStream(
-                        optionsMap.get(option)), 64 * 1024);
+                fileInputStream = new FileInputStream(optionsMap.get(option));
+                input = new BufferedInputStream(fileInputStream, 64 * 1024);
                 standardInput = false;
                 final long fileSize = new File(optionsMap.get(option)).length();
                 callback = new EncoderCallback(fileSize);
             } else if ("fo".equalsIgnoreCase(option)) {
+                outputFileName = optionsMap.get(option);
                 output = new BufferedOutputStream(new DelayedFileOutputStream(
-                        optionsMap.get(option)), 64 * 1024);
+                        outputFileName), 64 * 1024);
                 standardOutput = false;
-            } else if ("lzpLowContextLength".equalsIgnoreCase(option)) {
-                optionsBean.setLzpLowContextLength(
-                        Integer.parseInt(optionsMap.get(option)));
-            } else if ("lzpLowMaskSize".equalsIgnoreCase(option)) {
-                optionsBean.setLzpLowMaskSize(
-                        Integer.parseInt(optionsMap.get(option)));
-            } else if ("lzpHighContextLength".equalsIgnoreCase(option)) {
-                optionsBean.setLzpHighContextLength(
-                        Integer.parseInt(optionsMap.get(option)));
-            } else if ("lzpHighMaskSize".equalsIgnoreCase(option)) {
-                optionsBean.setLzpHighMaskSize(
-                        Integer.parseInt(optionsMap.get(option)));
-            } else if ("literalCoderOrder".equalsIgnoreCase(option)) {
-                optionsBean.setLiteralCoderOrder(
-                        Integer.parseInt(optionsMap.get(option)));
-            } else if ("literalCoderInit".equalsIgnoreCase(option)) {
-                optionsBean.setLiteralCoderInit(
-                        Integer.parseInt(optionsMap.get(option)));
-            } else if ("literalCoderStep".equalsIgnoreCase(option)) {
-                optionsBean.setLiteralCoderStep(
-                        Integer.parseInt(optionsMap.get(option)));
-            } else if ("literalCoderLimit".equalsIgnoreCase(option)) {
-                optionsBean.setLiteralCoderLimit(
-                        Integer.parseInt(optionsMap.get(option)));
+            } else if ("mmap".equalsIgnoreCase(option)) {
+                mapped = Boolean.parseBoolean(optionsMap.get(option));
+            } else if ("blockSize".equalsIgnoreCase(option)) {
+                blockSize = Integer.parseInt(optionsMap.get(option));
+                parallel = true;
+            } else if ("threads".equalsIgnoreCase(option)) {
+                threadsNumber = Integer.parseInt(optionsMap.get(option));
+                parallel = true;
+            } else if (setSettingsOption(settings, option,
+                    optionsMap.get(option))) {
+                if (settings[0] == null) {
+                    return;
+                }
+            } else if (setEncodingOption(optionsBean, option,
+                    optionsMap.get(option))) {
             } else {
                 printError("Not suitable or unknown option: " + option);
                 return;
@@ -196,7 +367,39 @@ public class Main {
             printError("Wrong encoding options combination.");
             return;
         }
-        Coder.encode(input, output, callback, 64 * 1024, options);
+        if (blockSize <= 0 || threadsNumber <= 0) {
+            printError("Block size and threads number have to be positive.");
+            return;
+        }
+        if (mapped) {
+            if (fileInputStream == null || outputFileName == null) {
+                printError("Memory mapped mode requires `fi` and `fo` options.");
+                return;
+            }
+            if (parallel) {
+                printError("Memory mapped mode does not support blocks when "
+                        + "encoding.");
+                return;
+            }
+            final FileOutputStream fileOutputStream =
+                    new FileOutputStream(outputFileName);
+            Coder.encodeMapped(fileInputStream.getChannel(),
+                    fileOutputStream.getChannel(), callback, 64 * 1024,
+                    options, settings[0]);
+            if (callback != null) {
+                System.err.println("\rCompleted!");
+            }
+            fileInputStream.close();
+            fileOutputStream.close();
+            return;
+        }
+        if (parallel) {
+            Coder.encodeParallel(input, output, callback, options,
+                    blockSize, threadsNumber, settings[0]);
+        } else {
+            Coder.encode(input, output, callback, 64 * 1024, options,
+                    settings[0]);
+        }
         output.flush();
         if (callback != null) {
             System.err.println("\rCompleted!");
@@ -217,26 +420,64 @@ public class Main {
         boolean standardInput = true;
         boolean standardOutput = true;
         Coder.Callback callback = null;
+        int threadsNumber = Runtime.getRuntime().availableProcessors();
+        final Settings[] settings = {Settings.Default};
+        FileInputStream fileInputStream = null;
+        String outputFileName = null;
+        boolean mapped = false;
         for (final String option : optionsMap.keySet()) {
             if ("fi".equalsIgnoreCase(option)) {
-                final FileInputStream fileInputStream = new FileInputStream(
-                        optionsMap.get(option));
+                fileInputStream = new FileInputStream(optionsMap.get(option));
                 input = new BufferedInputStream(fileInputStream, 64 * 1024);
                 standardInput = false;
                 final long fileSize = new File(optionsMap.get(option)).length();
                 final FileChannel fileChannel = fileInputStream.getChannel();
                 callback = new DecoderCallback(fileChannel, fileSize);
             } else if ("fo".equalsIgnoreCase(option)) {
+                outputFileName = optionsMap.get(option);
                 output = new BufferedOutputStream(
-                        new DelayedFileOutputStream(optionsMap.get(option)),
+                        new DelayedFileOutputStream(outputFileName),
                         64 * 1024);
                 standardOutput = false;
+            } else if ("mmap".equalsIgnoreCase(option)) {
+                mapped = Boolean.parseBoolean(optionsMap.get(option));
+            } else if ("threads".equalsIgnoreCase(option)) {
+                threadsNumber = Integer.parseInt(optionsMap.get(option));
+            } else if (setSettingsOption(settings, option,
+                    optionsMap.get(option))) {
+                if (settings[0] == null) {
+                    return;
+                }
             } else {
                 printError("Not suitable or unknown option: " + option);
                 return;
             }
         }
-        Coder.decode(input, output, callback, 64 * 1024);
+        if (threadsNumber <= 0) {
+            printError("Threads number has to be positive.");
+            return;
+        }
+        if (mapped) {
+            if (fileInputStream == null || outputFileName == null) {
+                printError("Memory mapped mode requires `fi` and `fo` options.");
+                return;
+            }
+            final FileChannel inputChannel = fileInputStream.getChannel();
+            final FileOutputStream fileOutputStream =
+                    new FileOutputStream(outputFileName);
+            Coder.decodeMapped(inputChannel, fileOutputStream.getChannel(),
+                    callback, 64 * 1024, threadsNumber, settings[0]);
+            final boolean allDecoded =
+                    inputChannel.position() == inputChannel.size();
+            fileInputStream.close();
+            fileOutputStream.close();
+            if (!allDecoded) {
+                throw new IOException("Not entire input was decoded.");
+            }
+            return;
+        }
+        Coder.decodeParallel(input, output, callback, 64 * 1024,
+                threadsNumber, settings[0]);
         output.flush();
         final boolean allDecoded = input.read() == -1;
         if (!standardInput) {
@@ -250,6 +491,270 @@ public class Main {
         }
     }
 
+    private void test(final Map<String, String> optionsMap)
+            throws FileNotFoundException, IOException {
+        InputStream input = new BufferedInputStream(System.in, 64 * 1024);
+        boolean standardInput = true;
+        Coder.Callback callback = null;
+        int threadsNumber = Runtime.getRuntime().availableProcessors();
+        final Settings[] settings = {Settings.Default};
+        String inputFileName = null;
+        for (final String option : optionsMap.keySet()) {
+            if ("fi".equalsIgnoreCase(option)) {
+                inputFileName = optionsMap.get(option);
+                final FileInputStream fileInputStream =
+                        new FileInputStream(optionsMap.get(option));
+                input = new BufferedInputStream(fileInputStream, 64 * 1024);
+                standardInput = false;
+                final long fileSize = new File(optionsMap.get(option)).length();
+                final FileChannel fileChannel = fileInputStream.getChannel();
+                callback = new DecoderCallback(fileChannel, fileSize);
+            } else if ("threads".equalsIgnoreCase(option)) {
+                threadsNumber = Integer.parseInt(optionsMap.get(option));
+            } else if (setSettingsOption(settings, option,
+                    optionsMap.get(option))) {
+                if (settings[0] == null) {
+                    return;
+                }
+            } else {
+                printError("Not suitable or unknown option: " + option);
+                return;
+            }
+        }
+        if (threadsNumber <= 0) {
+            printError("Threads number has to be positive.");
+            return;
+        }
+        if (inputFileName != null
+                && ArchiveCoder.isArchive(new File(inputFileName))) {
+            input.close();
+            final long decoded = ArchiveCoder.test(new File(inputFileName),
+                    settings[0], threadsNumber);
+            err("Test passed. Decoded " + decoded + " bytes.");
+            return;
+        }
+        final long decoded = Coder.test(input, callback, 64 * 1024,
+                threadsNumber, settings[0]);
+        final boolean allDecoded = input.read() == -1;
+        if (!standardInput) {
+            input.close();
+        }
+        if (!allDecoded) {
+            throw new IOException("Not entire input was decoded.");
+        }
+        err("");
+        err("Test passed. Decoded " + decoded + " bytes.");
+    }
+
+    private void archive(final Map<String, String> optionsMap)
+            throws IOException {
+        String directoryName = null;
+        String outputFileName = null;
+        final OptionsBean optionsBean = new OptionsBean();
+        int threadsNumber = Runtime.getRuntime().availableProcessors();
+        final Settings[] settings = {Settings.Default};
+        for (final String option : optionsMap.keySet()) {
+            if ("dir".equalsIgnoreCase(option)) {
+                directoryName = optionsMap.get(option);
+            } else if ("fo".equalsIgnoreCase(option)) {
+                outputFileName = optionsMap.get(option);
+            } else if ("threads".equalsIgnoreCase(option)) {
+                threadsNumber = Integer.parseInt(optionsMap.get(option));
+            } else if (setSettingsOption(settings, option,
+                    optionsMap.get(option))) {
+                if (settings[0] == null) {
+                    return;
+                }
+            } else if (setEncodingOption(optionsBean, option,
+                    optionsMap.get(option))) {
+            } else {
+                printError("Not suitable or unknown option: " + option);
+                return;
+            }
+        }
+        if (directoryName == null || outputFileName == null) {
+            printError("Archiving requires `dir` and `fo` options.");
+            return;
+        }
+        final File directory = new File(directoryName);
+        if (!directory.isDirectory()) {
+            printError("Not a directory: " + directoryName);
+            return;
+        }
+        final Options options = optionsBean.toOptions();
+        if (options == null) {
+            printError("Wrong encoding options combination.");
+            return;
+        }
+        if (threadsNumber <= 0) {
+            printError("Threads number has to be positive.");
+            return;
+        }
+        final int filesNumber = ArchiveCoder.encode(directory,
+                new File(outputFileName), options, settings[0],
+                threadsNumber);
+        err("Archived " + filesNumber + " files.");
+    }
+
+    private void extract(final Map<String, String> optionsMap)
+            throws IOException {
+        String inputFileName = null;
+        String directoryName = null;
+        Set<String> paths = null;
+        int threadsNumber = Runtime.getRuntime().availableProcessors();
+        final Settings[] settings = {Settings.Default};
+        for (final String option : optionsMap.keySet()) {
+            if ("fi".equalsIgnoreCase(option)) {
+                inputFileName = optionsMap.get(option);
+            } else if ("dir".equalsIgnoreCase(option)) {
+                directoryName = optionsMap.get(option);
+            } else if ("file".equalsIgnoreCase(option)) {
+                paths = Collections.singleton(optionsMap.get(option));
+            } else if ("threads".equalsIgnoreCase(option)) {
+                threadsNumber = Integer.parseInt(optionsMap.get(option));
+            } else if (setSettingsOption(settings, option,
+                    optionsMap.get(option))) {
+                if (settings[0] == null) {
+                    return;
+                }
+            } else {
+                printError("Not suitable or unknown option: " + option);
+                return;
+            }
+        }
+        if (inputFileName == null || directoryName == null) {
+            printError("Extracting requires `fi` and `dir` options.");
+            return;
+        }
+        if (threadsNumber <= 0) {
+            printError("Threads number has to be positive.");
+            return;
+        }
+        final int filesNumber = ArchiveCoder.decode(new File(inputFileName),
+                new File(directoryName), paths, settings[0],
+                threadsNumber);
+        err("Extracted " + filesNumber + " files.");
+    }
+
+    private void list(final Map<String, String> optionsMap)
+            throws IOException {
+        String inputFileName = null;
+        for (final String option : optionsMap.keySet()) {
+            if ("fi".equalsIgnoreCase(option)) {
+                inputFileName = optionsMap.get(option);
+            } else {
+                printError("Not suitable or unknown option: " + option);
+                return;
+            }
+        }
+        if (inputFileName == null) {
+            printError("Listing requires `fi` option.");
+            return;
+        }
+        final FileInputStream input = new FileInputStream(inputFileName);
+        try {
+            for (final ArchiveCoder.Entry entry
+                    : ArchiveCoder.list(input.getChannel())) {
+                System.out.println(entry.getLength() + "\t"
+                        + entry.getCompressedLength() + "\t"
+                        + entry.getPath());
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private void autotune(final Map<String, String> optionsMap)
+            throws IOException {
+        String inputFileName = null;
+        final OptionsBean optionsBean = new OptionsBean();
+        int sampleSize = OptionsTuner.DefaultSampleSize;
+        long memoryBudget = -1;
+        double minThroughput = 0;
+        int threadsNumber = Runtime.getRuntime().availableProcessors();
+        final Settings[] settings = {Settings.Default};
+        for (final String option : optionsMap.keySet()) {
+            if ("fi".equalsIgnoreCase(option)) {
+                inputFileName = optionsMap.get(option);
+            } else if ("sampleSize".equalsIgnoreCase(option)) {
+                sampleSize = Integer.parseInt(optionsMap.get(option));
+            } else if ("memory".equalsIgnoreCase(option)) {
+                memoryBudget = Long.parseLong(optionsMap.get(option)) << 20;
+            } else if ("minSpeed".equalsIgnoreCase(option)) {
+                minThroughput = Double.parseDouble(optionsMap.get(option))
+                        * (1 << 20);
+            } else if ("threads".equalsIgnoreCase(option)) {
+                threadsNumber = Integer.parseInt(optionsMap.get(option));
+            } else if (setSettingsOption(settings, option,
+                    optionsMap.get(option))) {
+                if (settings[0] == null) {
+                    return;
+                }
+            } else if (setEncodingOption(optionsBean, option,
+                    optionsMap.get(option))) {
+            } else {
+                printError("Not suitable or unknown option: " + option);
+                return;
+            }
+        }
+        if (inputFileName == null) {
+            printError("Tuning requires `fi` option.");
+            return;
+        }
+        final Options options = optionsBean.toOptions();
+        if (options == null) {
+            printError("Wrong encoding options combination.");
+            return;
+        }
+        if (sampleSize <= 0 || threadsNumber <= 0) {
+            printError("Sample size and threads number have to be "
+                    + "positive.");
+            return;
+        }
+        if (memoryBudget < 0) {
+            memoryBudget = OptionsTuner.memoryUsage(options, settings[0]);
+        }
+        final RandomAccessFile file = new RandomAccessFile(inputFileName, "r");
+        final long inputLength;
+        final ByteBuffer sample;
+        try {
+            inputLength = file.length();
+            sample = OptionsTuner.readSample(file, sampleSize);
+        } finally {
+            file.close();
+        }
+        err("Evaluating options on " + sample.remaining() + " bytes "
+                + "sample.");
+        final List<OptionsTuner.Result> results = OptionsTuner.tune(sample,
+                inputLength, options, settings[0], memoryBudget,
+                minThroughput, threadsNumber);
+        if (results.isEmpty()) {
+            printError("No options fit in memory and speed budgets.");
+            return;
+        }
+        err("Best options (estimated size, memory, speed):");
+        for (final OptionsTuner.Result result
+                : results.subList(0, Math.min(5, results.size()))) {
+            err(String.format("\t%d B, %d MiB, %.2f MiB/s, %s",
+                    result.getEstimatedSize(),
+                    result.getMemoryUsage() >> 20,
+                    result.getThroughput() / (1 << 20), result.getOptions()));
+        }
+        final Options best = results.get(0).getOptions();
+        System.out.println("lzpLowContextLength="
+                + best.getLzpLowContextLength()
+                + " lzpLowMaskSize=" + best.getLzpLowMaskSize()
+                + " lzpHighContextLength=" + best.getLzpHighContextLength()
+                + " lzpHighMaskSize=" + best.getLzpHighMaskSize()
+                + " literalCoderOrder=" + best.getLiteralCoderOrder()
+                + " literalCoderInit=" + best.getLiteralCoderInit()
+                + " literalCoderStep=" + best.getLiteralCoderStep()
+                + " literalCoderLimit=" + best.getLiteralCoderLimit()
+                + " multiplicativeHash=" + best.isMultiplicativeHash()
+                + " checksum=" + best.hasChecksum()
+                + " storedBlocks=" + best.hasStoredBlocks());
+    }
+
     private void showOptions(final Map<String, String> optionsMap) 
             throws FileNotFoundException, IOException {
         InputStream input = System.in;
@@ -270,6 +775,35 @@ public class Main {
         }
     }
 
+    private void benchmark(final Map<String, String> optionsMap)
+            throws IOException {
+        String filter = null;
+        int corpusSize = Benchmarks.DefaultCorpusSize;
+        int warmupIterations = Benchmarks.DefaultWarmupIterations;
+        int measuredIterations = Benchmarks.DefaultMeasuredIterations;
+        for (final String option : optionsMap.keySet()) {
+            if ("filter".equalsIgnoreCase(option)) {
+                filter = optionsMap.get(option);
+            } else if ("size".equalsIgnoreCase(option)) {
+                corpusSize = Integer.parseInt(optionsMap.get(option));
+            } else if ("warmup".equalsIgnoreCase(option)) {
+                warmupIterations = Integer.parseInt(optionsMap.get(option));
+            } else if ("iterations".equalsIgnoreCase(option)) {
+                measuredIterations = Integer.parseInt(optionsMap.get(option));
+            } else {
+                printError("Not suitable or unknown option: " + option);
+                return;
+            }
+        }
+        if (corpusSize <= 0 || warmupIterations < 0
+                || measuredIterations <= 0) {
+            printError("Corpus size and iterations have to be positive.");
+            return;
+        }
+        Benchmarks.run(System.out, filter, corpusSize, warmupIterations,
+                measuredIterations);
+    }
+
     private void dispatchCommand(final String[] args) throws IOException {
         final String command = args[0];
         final Map<String, String> optionsMap = convertOptions(args);
@@ -279,8 +813,20 @@ public class Main {
             encode(optionsMap);
         } else if ("decode".equalsIgnoreCase(command)) {
             decode(optionsMap);
+        } else if ("test".equalsIgnoreCase(command)) {
+            test(optionsMap);
+        } else if ("archive".equalsIgnoreCase(command)) {
+            archive(optionsMap);
+        } else if ("extract".equalsIgnoreCase(command)) {
+            extract(optionsMap);
+        } else if ("list".equalsIgnoreCase(command)) {
+            list(optionsMap);
+        } else if ("autotune".equalsIgnoreCase(command)) {
+            autotune(optionsMap);
         } else if ("showOptions".equalsIgnoreCase(command)) {
             showOptions(optionsMap);
+        } else if ("benchmark".equalsIgnoreCase(command)) {
+            benchmark(optionsMap);
         } else if ("gui".equalsIgnoreCase(command)) {
             printError("`gui` command do not expect options.");
         } else {
@@ -49,9 +49,9 @@ public final class Options implements Serializable {
                 && lzpLowContextLength <= lzpHighContextLength
                 && lzpHighContextLength <= 8
                 && lzpLowMaskSize >= 15
-                && lzpLowMaskSize <= 30
+                && lzpLowMaskSize <= 34
                 && lzpHighMaskSize >= 15
-                && lzpHighMaskSize <= 30
+                && lzpHighMaskSize <= 34
                 && literalCoderOrder >= 1
                 && literalCoderOrder <= 2
                 && literalCoderInit >= 1
@@ -63,7 +63,8 @@ public final class Options implements Serializable {
         if (valid) {
             return new Options(lzpLowContextLength, lzpLowMaskSize,
                     lzpHighContextLength, lzpHighMaskSize, literalCoderOrder, 
-                    literalCoderInit, literalCoderStep, literalCoderLimit);
+                    literalCoderInit, literalCoderStep, literalCoderLimit,
+                    false, false, false);
         } else {
             return null;
         }
@@ -76,11 +77,16 @@ public final class Options implements Serializable {
     private final long literalCoderInit;
     private final long literalCoderStep;
     private final long literalCoderLimit;
+    private final boolean multiplicativeHash;
+    private final boolean checksum;
+    private final boolean storedBlocks;
 
     private Options(final long lzpLowContextLength, final long lzpLowMaskSize,
             final long lzpHighContextLength, final long lzpHighMaskSize,
             final long literalCoderOrder, final long literalCoderInit, 
-            final long literalCoderStep, final long literalCoderLimit) {
+            final long literalCoderStep, final long literalCoderLimit,
+            final boolean multiplicativeHash, final boolean checksum,
+            final boolean storedBlocks) {
         this.lzpLowContextLength = lzpLowContextLength;
         this.lzpLowMaskSize = lzpLowMaskSize;
         this.lzpHighContextLength = lzpHighContextLength;
@@ -89,11 +95,65 @@ public final class Options implements Serializable {
         this.literalCoderInit = literalCoderInit;
         this.literalCoderStep = literalCoderStep;
         this.literalCoderLimit = literalCoderLimit;
+        this.multiplicativeHash = multiplicativeHash;
+        this.checksum = checksum;
+        this.storedBlocks = storedBlocks;
+    }
+
+    /**
+     * Returns options with the LZP context hashing mode changed. Streams
+     * encoded with multiplicative hashing are flagged in the header and can't
+     * be decoded by versions that predate the flag.
+     *
+     * @param multiplicativeHash whether LZP contexts are hashed with a single
+     * multiplication instead of byte by byte FNV-1a.
+     * @return options with the new hashing mode.
+     */
+    public Options withMultiplicativeHash(final boolean multiplicativeHash) {
+        return new Options(lzpLowContextLength, lzpLowMaskSize,
+                lzpHighContextLength, lzpHighMaskSize, literalCoderOrder,
+                literalCoderInit, literalCoderStep, literalCoderLimit,
+                multiplicativeHash, checksum, storedBlocks);
+    }
+
+    /**
+     * Returns options with the integrity trailer turned on or off. Streams
+     * with the trailer end with CRC32C of uncompressed data, which is
+     * verified when decoding. Such streams can't be decoded by versions that
+     * predate the flag.
+     *
+     * @param checksum whether streams carry a CRC32C trailer.
+     * @return options with the new trailer setting.
+     */
+    public Options withChecksum(final boolean checksum) {
+        return new Options(lzpLowContextLength, lzpLowMaskSize,
+                lzpHighContextLength, lzpHighMaskSize, literalCoderOrder,
+                literalCoderInit, literalCoderStep, literalCoderLimit,
+                multiplicativeHash, checksum, storedBlocks);
+    }
+
+    /**
+     * Returns options with stored blocks allowed or disallowed. When allowed,
+     * stretches of input that the model fails to compress are copied to the
+     * stream as they are, bypassing the model. Such streams can't be decoded
+     * by versions that predate the flag.
+     *
+     * @param storedBlocks whether incompressible data is stored raw.
+     * @return options with the new stored blocks setting.
+     */
+    public Options withStoredBlocks(final boolean storedBlocks) {
+        return new Options(lzpLowContextLength, lzpLowMaskSize,
+                lzpHighContextLength, lzpHighMaskSize, literalCoderOrder,
+                literalCoderInit, literalCoderStep, literalCoderLimit,
+                multiplicativeHash, checksum, storedBlocks);
     }
 
     public static Options fromPacked(final long packed) {
-        return Options.create(
-                packed >> 56 & 0xff,
+        if ((packed >>> 63) != 0) {
+            return null;
+        }
+        final Options options = Options.create(
+                packed >> 56 & 0x0f,
                 packed >> 48 & 0xff,
                 packed >> 40 & 0xff,
                 packed >> 32 & 0xff,
@@ -101,6 +161,13 @@ public final class Options implements Serializable {
                 packed >> 24 & 0x7f,
                 packed >> 16 & 0xff,
                 packed & 0xffff);
+        if (options == null) {
+            return null;
+        } else {
+            return options.withMultiplicativeHash((packed >> 60 & 0x01) != 0)
+                    .withChecksum((packed >> 61 & 0x01) != 0)
+                    .withStoredBlocks((packed >> 62 & 0x01) != 0);
+        }
     }
 
     public long toPacked() {
@@ -111,7 +178,10 @@ public final class Options implements Serializable {
                 + (((literalCoderOrder - 1) & 0x01) << 31)
                 + ((literalCoderInit & 0x7f) << 24)
                 + ((literalCoderStep & 0xff) << 16)
-                + (literalCoderLimit & 0xffff);
+                + (literalCoderLimit & 0xffff)
+                + (multiplicativeHash ? 1L << 60 : 0)
+                + (checksum ? 1L << 61 : 0)
+                + (storedBlocks ? 1L << 62 : 0);
     }
 
     public long getLzpLowContextLength() {
@@ -146,6 +216,18 @@ public final class Options implements Serializable {
         return literalCoderLimit;
     }
 
+    public boolean isMultiplicativeHash() {
+        return multiplicativeHash;
+    }
+
+    public boolean hasChecksum() {
+        return checksum;
+    }
+
+    public boolean hasStoredBlocks() {
+        return storedBlocks;
+    }
+
     @Override
     public int hashCode() {
         int hash = 7;
@@ -165,6 +247,9 @@ public final class Options implements Serializable {
                 ^ (this.literalCoderStep >>> 32));
         hash = 31 * hash + (int) (this.literalCoderLimit 
                 ^ (this.literalCoderLimit >>> 32));
+        hash = 31 * hash + (this.multiplicativeHash ? 1 : 0);
+        hash = 31 * hash + (this.checksum ? 1 : 0);
+        hash = 31 * hash + (this.storedBlocks ? 1 : 0);
         return hash;
     }
 
@@ -201,6 +286,15 @@ public final class Options implements Serializable {
         if (this.literalCoderLimit != other.literalCoderLimit) {
             return false;
         }
+        if (this.multiplicativeHash != other.multiplicativeHash) {
+            return false;
+        }
+        if (this.checksum != other.checksum) {
+            return false;
+        }
+        if (this.storedBlocks != other.storedBlocks) {
+            return false;
+        }
         return true;
     }
 
@@ -213,6 +307,9 @@ public final class Options implements Serializable {
                 + ", literalCoderOrder=" + literalCoderOrder 
                 + ", literalCoderInit=" + literalCoderInit 
                 + ", literalCoderStep=" + literalCoderStep
-                + ", literalCoderLimit=" + literalCoderLimit + ']';
+                + ", literalCoderLimit=" + literalCoderLimit
+                + ", multiplicativeHash=" + multiplicativeHash
+                + ", checksum=" + checksum
+                + ", storedBlocks=" + storedBlocks + ']';
     }
 }
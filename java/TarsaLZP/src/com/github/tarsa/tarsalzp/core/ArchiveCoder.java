@@ -0,0 +1,599 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import com.github.tarsa.tarsalzp.Options;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Multi-file archive. Layout (all numbers big endian):
+ * <pre>
+ * header (8), archive marker (8), packed options (8)
+ * for every file: raw encoded stream
+ * file index: files count (8), for every file:
+ *     path length (4), path in UTF-8, uncompressed length (8),
+ *     stream offset (8), stream length (8)
+ * file index offset (8)
+ * </pre>
+ * Offsets are relative to the beginning of the archive. Paths are relative
+ * to the archived directory and use slashes as separators. Streams are
+ * stored in the order they were encoded in, which depends on scheduling,
+ * while the index is sorted by path. Every file can be decoded on its own
+ * using the index.
+ *
+ * @author Piotr Tarsa
+ */
+public final class ArchiveCoder {
+
+    /**
+     * Marker following the header. Its highest byte is zero, so older
+     * readers reject it as invalid options.
+     */
+    public static final long ArchiveMarker = 0x0041524348495631l;
+    private static final int PreambleLength = 24;
+
+    private ArchiveCoder() {
+    }
+
+    /**
+     * Archived file as described by the file index.
+     */
+    public static final class Entry {
+
+        private final String path;
+        private final long length;
+        private final long offset;
+        private final long compressedLength;
+
+        Entry(final String path, final long length, final long offset,
+                final long compressedLength) {
+            this.path = path;
+            this.length = length;
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getCompressedLength() {
+            return compressedLength;
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Files and paths">
+    private static final class SourceFile {
+
+        final File file;
+        final String path;
+        final long length;
+
+        SourceFile(final File file, final String path) {
+            this.file = file;
+            this.path = path;
+            length = file.length();
+        }
+    }
+
+    /**
+     * Collects regular files below the directory. Directories reached
+     * again through links are skipped.
+     */
+    private static void collectFiles(final File directory, final String prefix,
+            final Set<String> visitedDirectories,
+            final List<SourceFile> files) throws IOException {
+        if (!visitedDirectories.add(directory.getCanonicalPath())) {
+            return;
+        }
+        final File[] children = directory.listFiles();
+        if (children == null) {
+            throw new IOException("Cannot list directory: " + directory);
+        }
+        for (final File child : children) {
+            final String path = prefix + child.getName();
+            if (child.isDirectory()) {
+                collectFiles(child, path + "/", visitedDirectories, files);
+            } else if (child.isFile()) {
+                files.add(new SourceFile(child, path));
+            }
+        }
+    }
+
+    /**
+     * Orders by decreasing length, so the largest files are coded first and
+     * don't end up alone at the end of a parallel run.
+     */
+    private static final Comparator<SourceFile> LargestFirst =
+            new Comparator<SourceFile>() {
+
+                @Override
+                public int compare(final SourceFile left,
+                        final SourceFile right) {
+                    return compareLargestFirst(left.length, left.path,
+                            right.length, right.path);
+                }
+            };
+    private static final Comparator<Entry> EntriesLargestFirst =
+            new Comparator<Entry>() {
+
+                @Override
+                public int compare(final Entry left, final Entry right) {
+                    return compareLargestFirst(left.length, left.path,
+                            right.length, right.path);
+                }
+            };
+    private static final Comparator<Entry> EntriesByPath =
+            new Comparator<Entry>() {
+
+                @Override
+                public int compare(final Entry left, final Entry right) {
+                    return left.path.compareTo(right.path);
+                }
+            };
+
+    private static int compareLargestFirst(final long leftLength,
+            final String leftPath, final long rightLength,
+            final String rightPath) {
+        if (leftLength != rightLength) {
+            return leftLength > rightLength ? -1 : 1;
+        }
+        return leftPath.compareTo(rightPath);
+    }
+
+    /**
+     * Resolves a path from the index against the target directory, refusing
+     * paths that would point outside of it.
+     */
+    private static File resolve(final File directory, final String path)
+            throws IOException {
+        File file = directory;
+        for (final String segment : path.split("/", -1)) {
+            if (segment.isEmpty() || ".".equals(segment)
+                    || "..".equals(segment)) {
+                throw new IOException("Unsafe path in archive: " + path);
+            }
+            file = new File(file, segment);
+        }
+        return file;
+    }// </editor-fold>
+    // <editor-fold defaultstate="collapsed" desc="Tasks">
+
+    private static final class EncodedFile {
+
+        final SourceFile source;
+        final long length;
+        final ByteBuffer encoded;
+
+        EncodedFile(final SourceFile source, final long length,
+                final ByteBuffer encoded) {
+            this.source = source;
+            this.length = length;
+            this.encoded = encoded;
+        }
+    }
+
+    private static final class EncodingTask implements Callable<EncodedFile> {
+
+        private final SourceFile source;
+        private final Options options;
+        private final CoderPool coderPool;
+
+        EncodingTask(final SourceFile source, final Options options,
+                final CoderPool coderPool) {
+            this.source = source;
+            this.options = options;
+            this.coderPool = coderPool;
+        }
+
+        @Override
+        public EncodedFile call() throws IOException {
+            final InputStream inputStream = new FileInputStream(source.file);
+            try {
+                final GrowingOutputWindow output = new GrowingOutputWindow(
+                        (int) Math.min(source.length / 2 + 64,
+                        Integer.MAX_VALUE / 2));
+                final Encoder encoder = coderPool.acquireEncoder(options,
+                        new StreamInputWindow(inputStream,
+                        InputWindow.DefaultSize, false), output);
+                final long[] length = new long[1];
+                try {
+                    Coder.doEncode(encoder, new Coder.Callback() {
+
+                        @Override
+                        public void progressChanged(
+                                final long processedSymbols) {
+                            length[0] = processedSymbols;
+                        }
+                    }, Long.MAX_VALUE);
+                } finally {
+                    coderPool.release(encoder);
+                }
+                return new EncodedFile(source, length[0], output.result());
+            } finally {
+                inputStream.close();
+            }
+        }
+    }
+
+    private static final class DecodingTask implements Callable<Entry> {
+
+        private final FileChannel channel;
+        private final Entry entry;
+        private final File target;
+        private final CoderPool coderPool;
+        private final Options options;
+
+        DecodingTask(final FileChannel channel, final Entry entry,
+                final File target, final CoderPool coderPool,
+                final Options options) {
+            this.channel = channel;
+            this.entry = entry;
+            this.target = target;
+            this.coderPool = coderPool;
+            this.options = options;
+        }
+
+        @Override
+        public Entry call() throws IOException {
+            final ByteBuffer input = channel.map(FileChannel.MapMode.READ_ONLY,
+                    entry.offset, entry.compressedLength);
+            if (target == null) {
+                decode(input, new DiscardingOutputWindow(
+                        OutputWindow.DefaultSize));
+                return entry;
+            }
+            final File parent = target.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create directory: " + parent);
+            }
+            final OutputStream outputStream = new FileOutputStream(target);
+            try {
+                decode(input, new StreamOutputWindow(outputStream,
+                        OutputWindow.DefaultSize));
+            } finally {
+                outputStream.close();
+            }
+            return entry;
+        }
+
+        private void decode(final ByteBuffer input, final OutputWindow output)
+                throws IOException {
+            final Decoder decoder = coderPool.acquireDecoder(options,
+                    new BufferInputWindow(input), output);
+            final long decoded;
+            try {
+                decoded = decoder.decode(Long.MAX_VALUE);
+            } finally {
+                coderPool.release(decoder);
+            }
+            if (input.hasRemaining() || decoded != entry.length) {
+                throw new IOException("Corrupted file in archive: "
+                        + entry.path);
+            }
+        }
+    }// </editor-fold>
+
+    /**
+     * Encodes all regular files below the directory into an archive.
+     * Files are encoded concurrently, largest first, by the given number
+     * of threads. Every thread reuses model tables of its encoder between
+     * files.
+     *
+     * @return number of archived files
+     */
+    public static int encode(final File directory, final File archive,
+            final Options options, final Settings settings,
+            final int threadsNumber) throws IOException {
+        if (threadsNumber <= 0) {
+            throw new IllegalArgumentException(
+                    "Threads number has to be positive.");
+        }
+        final List<SourceFile> files = new ArrayList<SourceFile>();
+        collectFiles(directory, "", new HashSet<String>(), files);
+        Collections.sort(files, LargestFirst);
+        final List<Entry> entries = new ArrayList<Entry>(files.size());
+        final OutputStream outputStream = new BufferedOutputStream(
+                new FileOutputStream(archive), 64 * 1024);
+        try {
+            BlockCoder.writeLong(outputStream, Coder.HeaderValue);
+            BlockCoder.writeLong(outputStream, ArchiveMarker);
+            BlockCoder.writeLong(outputStream, options.toPacked());
+            long currentOffset = PreambleLength;
+            final CoderPool coderPool = new CoderPool(settings,
+                    threadsNumber);
+            final ExecutorService executor =
+                    Executors.newFixedThreadPool(threadsNumber);
+            try {
+                final CompletionService<EncodedFile> completionService =
+                        new ExecutorCompletionService<EncodedFile>(executor);
+                for (final SourceFile file : files) {
+                    completionService.submit(new EncodingTask(file, options,
+                            coderPool));
+                }
+                for (int i = 0; i < files.size(); i++) {
+                    final EncodedFile encodedFile = BlockCoder.await(
+                            nextCompleted(completionService));
+                    final int compressedLength =
+                            encodedFile.encoded.remaining();
+                    BlockCoder.writeBuffer(outputStream, encodedFile.encoded);
+                    entries.add(new Entry(encodedFile.source.path,
+                            encodedFile.length, currentOffset,
+                            compressedLength));
+                    currentOffset += compressedLength;
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            Collections.sort(entries, EntriesByPath);
+            BlockCoder.writeLong(outputStream, entries.size());
+            for (final Entry entry : entries) {
+                final byte[] path = entry.path.getBytes("UTF-8");
+                BlockCoder.writeInt(outputStream, path.length);
+                outputStream.write(path);
+                BlockCoder.writeLong(outputStream, entry.length);
+                BlockCoder.writeLong(outputStream, entry.offset);
+                BlockCoder.writeLong(outputStream, entry.compressedLength);
+            }
+            BlockCoder.writeLong(outputStream, currentOffset);
+        } finally {
+            outputStream.close();
+        }
+        return entries.size();
+    }
+
+    private static <T> Future<T> nextCompleted(
+            final CompletionService<T> completionService) throws IOException {
+        try {
+            return completionService.take();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted.");
+        }
+    }
+
+    private static void readFully(final FileChannel channel,
+            final ByteBuffer buffer, final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("Unexpected end of file.");
+            }
+        }
+    }
+
+    /**
+     * Tells whether the file starts with the header of an archive.
+     */
+    public static boolean isArchive(final File file) throws IOException {
+        final RandomAccessFile randomAccessFile =
+                new RandomAccessFile(file, "r");
+        try {
+            final ByteBuffer preamble = ByteBuffer.allocate(16);
+            final FileChannel channel = randomAccessFile.getChannel();
+            return channel.size() >= PreambleLength
+                    && channel.read(preamble, 0) == preamble.capacity()
+                    && preamble.getLong(0) == Coder.HeaderValue
+                    && preamble.getLong(8) == ArchiveMarker;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static Options readOptions(final FileChannel channel)
+            throws IOException {
+        final ByteBuffer preamble = ByteBuffer.allocate(PreambleLength);
+        readFully(channel, preamble, 0);
+        preamble.flip();
+        if (preamble.getLong() != Coder.HeaderValue) {
+            throw new IOException("Wrong file header. Probably not a "
+                    + "compressed file.");
+        }
+        if (preamble.getLong() != ArchiveMarker) {
+            throw new IOException("Not an archive.");
+        }
+        return Coder.unpackOptions(preamble.getLong());
+    }
+
+    /**
+     * Reads the file index of an archive.
+     *
+     * @return archived files sorted by path
+     */
+    public static List<Entry> list(final FileChannel channel)
+            throws IOException {
+        readOptions(channel);
+        final long size = channel.size();
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+        readFully(channel, buffer, size - 8);
+        final long indexOffset = buffer.getLong(0);
+        if (indexOffset < PreambleLength || indexOffset > size - 16) {
+            throw new IOException("Invalid archive index.");
+        }
+        final ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY,
+                indexOffset, size - 8 - indexOffset);
+        try {
+            final long count = index.getLong();
+            if (count < 0 || count > index.remaining() / 28) {
+                throw new IOException("Invalid archive index.");
+            }
+            final List<Entry> entries = new ArrayList<Entry>((int) count);
+            for (long i = 0; i < count; i++) {
+                final int pathLength = index.getInt();
+                if (pathLength < 0 || pathLength > index.remaining()) {
+                    throw new IOException("Invalid archive index.");
+                }
+                final byte[] path = new byte[pathLength];
+                index.get(path);
+                final Entry entry = new Entry(new String(path, "UTF-8"),
+                        index.getLong(), index.getLong(), index.getLong());
+                if (entry.length < 0 || entry.offset < PreambleLength
+                        || entry.compressedLength < 0
+                        || entry.offset + entry.compressedLength
+                        > indexOffset) {
+                    throw new IOException("Invalid archive index.");
+                }
+                entries.add(entry);
+            }
+            if (index.hasRemaining()) {
+                throw new IOException("Invalid archive index.");
+            }
+            return entries;
+        } catch (final BufferUnderflowException ex) {
+            throw new IOException("Invalid archive index.");
+        }
+    }
+
+    /**
+     * Decodes files from an archive into the directory. Only streams of the
+     * selected files are read. Files are decoded concurrently, largest
+     * first.
+     *
+     * @param paths paths of files to extract or null to extract all
+     * @return number of extracted files
+     */
+    public static int decode(final File archive, final File directory,
+            final Set<String> paths, final Settings settings,
+            final int threadsNumber) throws IOException {
+        if (threadsNumber <= 0) {
+            throw new IllegalArgumentException(
+                    "Threads number has to be positive.");
+        }
+        final RandomAccessFile file = new RandomAccessFile(archive, "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            final Options options = readOptions(channel);
+            final List<Entry> entries = new ArrayList<Entry>();
+            final Set<String> missingPaths = paths == null ? null
+                    : new HashSet<String>(paths);
+            for (final Entry entry : list(channel)) {
+                if (paths == null || missingPaths.remove(entry.path)) {
+                    entries.add(entry);
+                }
+            }
+            if (missingPaths != null && !missingPaths.isEmpty()) {
+                throw new IOException("No such files in archive: "
+                        + missingPaths);
+            }
+            decodeEntries(channel, options, entries, directory, settings,
+                    threadsNumber);
+            return entries.size();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Decodes all files from an archive without storing them. This verifies
+     * the index, structure of all streams and checksums of streams that
+     * have them.
+     *
+     * @return total length of decoded files
+     */
+    public static long test(final File archive, final Settings settings,
+            final int threadsNumber) throws IOException {
+        if (threadsNumber <= 0) {
+            throw new IllegalArgumentException(
+                    "Threads number has to be positive.");
+        }
+        final RandomAccessFile file = new RandomAccessFile(archive, "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            final Options options = readOptions(channel);
+            final List<Entry> entries = list(channel);
+            decodeEntries(channel, options, entries, null, settings,
+                    threadsNumber);
+            long decoded = 0;
+            for (final Entry entry : entries) {
+                decoded += entry.length;
+            }
+            return decoded;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Decodes entries concurrently, largest first, into files below the
+     * directory or discarding them if the directory is null.
+     */
+    private static void decodeEntries(final FileChannel channel,
+            final Options options, final List<Entry> entries,
+            final File directory, final Settings settings,
+            final int threadsNumber) throws IOException {
+        final List<Entry> sortedEntries = new ArrayList<Entry>(entries);
+        Collections.sort(sortedEntries, EntriesLargestFirst);
+        final List<Future<Entry>> results = new ArrayList<Future<Entry>>();
+        final CoderPool coderPool = new CoderPool(settings, threadsNumber);
+        final ExecutorService executor =
+                Executors.newFixedThreadPool(threadsNumber);
+        try {
+            for (final Entry entry : sortedEntries) {
+                results.add(executor.submit(new DecodingTask(channel, entry,
+                        directory == null ? null
+                        : resolve(directory, entry.path), coderPool,
+                        options)));
+            }
+            for (final Future<Entry> result : results) {
+                BlockCoder.await(result);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
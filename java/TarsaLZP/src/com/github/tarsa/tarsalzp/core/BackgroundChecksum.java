@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CRC32C computed on a separate thread. Bytes passed to it are copied into
+ * segments which are checksummed in order, so coding thread spends time only
+ * on copying. Thread is started on demand and stops after a second of
+ * inactivity.
+ *
+ * @author Piotr Tarsa
+ */
+final class BackgroundChecksum {
+
+    private static final int SegmentSize = 64 * 1024;
+    private static final int SegmentsNumber = 4;
+    private static final ThreadFactory DaemonThreadFactory =
+            new ThreadFactory() {
+
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable,
+                            "TarsaLZP checksum");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+    private static final Runnable Barrier = new Runnable() {
+
+        @Override
+        public void run() {
+        }
+    };
+    private final Crc32c crc32c = new Crc32c();
+    private final BlockingQueue<byte[]> freeSegments =
+            new ArrayBlockingQueue<byte[]>(SegmentsNumber);
+    private final ThreadPoolExecutor executor;
+    private int allocatedSegments = 0;
+    private byte[] segment = null;
+    private int segmentLength = 0;
+
+    private final class SegmentTask implements Runnable {
+
+        private final byte[] segment;
+        private final int length;
+
+        SegmentTask(final byte[] segment, final int length) {
+            this.segment = segment;
+            this.length = length;
+        }
+
+        @Override
+        public void run() {
+            crc32c.update(segment, 0, length);
+            freeSegments.add(segment);
+        }
+    }
+
+    BackgroundChecksum() {
+        executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), DaemonThreadFactory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private void takeSegment() throws IOException {
+        if (freeSegments.isEmpty() && allocatedSegments < SegmentsNumber) {
+            allocatedSegments++;
+            segment = new byte[SegmentSize];
+        } else {
+            try {
+                segment = freeSegments.take();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted.");
+            }
+        }
+        segmentLength = 0;
+    }
+
+    private void submitSegment() {
+        if (segment != null && segmentLength > 0) {
+            executor.execute(new SegmentTask(segment, segmentLength));
+            segment = null;
+        }
+    }
+
+    void update(final byte[] bytes, final int offset, final int length)
+            throws IOException {
+        update(ByteBuffer.wrap(bytes), offset, offset + length);
+    }
+
+    /**
+     * Checksums bytes between given positions of the buffer. Buffer position
+     * and limit are left intact.
+     */
+    void update(final ByteBuffer buffer, int from, final int to)
+            throws IOException {
+        final ByteBuffer source = buffer.duplicate();
+        while (from < to) {
+            if (segment == null) {
+                takeSegment();
+            }
+            final int length = Math.min(to - from,
+                    SegmentSize - segmentLength);
+            source.limit(from + length).position(from);
+            source.get(segment, segmentLength, length);
+            segmentLength += length;
+            from += length;
+            if (segmentLength == SegmentSize) {
+                submitSegment();
+            }
+        }
+    }
+
+    /**
+     * Waits until all bytes passed so far are checksummed.
+     *
+     * @return CRC32C of all bytes passed since the last reset
+     */
+    int getValue() throws IOException {
+        submitSegment();
+        final Future<?> barrier = executor.submit(Barrier);
+        try {
+            barrier.get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted.");
+        } catch (final ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+        return crc32c.getValue();
+    }
+
+    /**
+     * Sets the state as if data with given CRC was checksummed. Bytes passed
+     * before are discarded.
+     */
+    void reset(final int value) {
+        segmentLength = 0;
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                crc32c.reset(value);
+            }
+        });
+    }
+}
@@ -0,0 +1,506 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import com.github.tarsa.tarsalzp.Options;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Throughput benchmarks of the coders and their hot paths. Every benchmark
+ * runs a number of warmup iterations followed by measured ones and reports
+ * mean throughput with standard deviation and allocation rate of the
+ * benchmarking thread. The same corpora serve the check of encoding entry
+ * points in the test sources.
+ *
+ * @author Piotr Tarsa
+ */
+public final class Benchmarks {
+
+    public static final int DefaultCorpusSize = 4 << 20;
+    public static final int DefaultWarmupIterations = 3;
+    public static final int DefaultMeasuredIterations = 5;
+    /**
+     * Keeps results of benchmarked code alive, so it cannot be eliminated.
+     */
+    private static volatile long sink;
+    private final int corpusSize;
+    final Map<String, Options> presets = new LinkedHashMap<String, Options>();
+    final Map<String, byte[]> corpora = new LinkedHashMap<String, byte[]>();
+
+    Benchmarks(final int corpusSize) {
+        this.corpusSize = corpusSize;
+        presets.put("lowMasks", Options.create(4, 16, 8, 18, 2, 1, 60, 30000));
+        presets.put("default", Options.create(4, 24, 8, 27, 2, 1, 60, 30000));
+        presets.put("highMasks", Options.create(4, 24, 8, 28, 2, 1, 60, 30000));
+        presets.put("order1", Options.create(4, 24, 8, 27, 1, 1, 60, 30000));
+        final Random random = new Random(0);
+        corpora.put("text", generateText(random));
+        corpora.put("binary", generateBinary(random));
+        corpora.put("random", generateRandom(random));
+        corpora.put("repetitive", generateRepetitive(random));
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Corpora">
+    private byte[] generateText(final Random random) {
+        final String[] words = new String[2048];
+        for (int i = 0; i < words.length; i++) {
+            final StringBuilder word = new StringBuilder();
+            final int length = 1 + random.nextInt(4) + random.nextInt(6);
+            for (int j = 0; j < length; j++) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = word.toString();
+        }
+        final StringBuilder text = new StringBuilder(corpusSize + 16);
+        int sentenceLength = 0;
+        while (text.length() < corpusSize) {
+            // squaring skews choice towards frequent words
+            final double uniform = random.nextDouble();
+            text.append(words[(int) (uniform * uniform * words.length)]);
+            if (++sentenceLength > 4 + random.nextInt(12)) {
+                text.append(random.nextInt(8) == 0 ? ".\n" : ". ");
+                sentenceLength = 0;
+            } else {
+                text.append(random.nextInt(10) == 0 ? ", " : " ");
+            }
+        }
+        final byte[] result = new byte[corpusSize];
+        for (int i = 0; i < corpusSize; i++) {
+            result[i] = (byte) text.charAt(i);
+        }
+        return result;
+    }
+
+    private byte[] generateBinary(final Random random) {
+        final ByteBuffer buffer = ByteBuffer.allocate(corpusSize);
+        int counter = random.nextInt();
+        while (buffer.remaining() >= 16) {
+            counter += 1 + random.nextInt(16);
+            buffer.putInt(counter);
+            buffer.putFloat((float) random.nextGaussian());
+            buffer.putShort((short) random.nextInt(100));
+            buffer.put((byte) random.nextInt(4));
+            buffer.put((byte) 0);
+            buffer.putInt(random.nextInt(8) == 0 ? random.nextInt() : 0);
+        }
+        return buffer.array();
+    }
+
+    private byte[] generateRandom(final Random random) {
+        final byte[] result = new byte[corpusSize];
+        random.nextBytes(result);
+        return result;
+    }
+
+    private byte[] generateRepetitive(final Random random) {
+        final byte[] block = new byte[64 * 1024];
+        random.nextBytes(block);
+        final byte[] result = new byte[corpusSize];
+        for (int i = 0; i < corpusSize; i++) {
+            result[i] = block[i % block.length];
+            if (random.nextInt(4096) == 0) {
+                block[i % block.length] = (byte) random.nextInt();
+            }
+        }
+        return result;
+    }// </editor-fold>
+    // <editor-fold defaultstate="collapsed" desc="Benchmarks">
+
+    private abstract static class Benchmark {
+
+        final String name;
+        final String unit;
+
+        Benchmark(final String name, final String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        /**
+         * Prepares a single iteration. Not measured.
+         */
+        void setUp() throws IOException {
+        }
+
+        /**
+         * Runs a single measured iteration.
+         *
+         * @return number of processed units
+         */
+        abstract long run() throws IOException;
+    }
+
+    private static Encoder newEncoder(final Options options) {
+        return new Encoder(new BufferInputWindow(ByteBuffer.allocate(0)),
+                new DiscardingOutputWindow(OutputWindow.DefaultSize), options,
+                Settings.Default);
+    }
+
+    private List<Benchmark> createBenchmarks() {
+        final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (final Map.Entry<String, Options> preset : presets.entrySet()) {
+            for (final Map.Entry<String, byte[]> corpus : corpora.entrySet()) {
+                final String suffix = preset.getKey() + "/" + corpus.getKey();
+                benchmarks.add(new EncodeBenchmark("encode/" + suffix,
+                        preset.getValue(), corpus.getValue()));
+                benchmarks.add(new DecodeBenchmark("decode/" + suffix,
+                        preset.getValue(), corpus.getValue()));
+            }
+        }
+        final byte[] text = corpora.get("text");
+        for (final Map.Entry<String, Options> preset : presets.entrySet()) {
+            final String suffix = "/" + preset.getKey();
+            benchmarks.add(new ComputeHashesBenchmark(
+                    "computeHashes" + suffix, preset.getValue(), text));
+            benchmarks.add(new EncodeSymbolBenchmark(
+                    "encodeSymbol" + suffix, preset.getValue(), text));
+            benchmarks.add(new DecodeSymbolBenchmark(
+                    "decodeSymbol" + suffix, preset.getValue(), text));
+            benchmarks.add(new RescaleBenchmark(
+                    "rescaleLiteralCoder" + suffix, preset.getValue()));
+        }
+        benchmarks.add(new NLog2Benchmark("nLog2"));
+        return benchmarks;
+    }
+
+    private static final class EncodeBenchmark extends Benchmark {
+
+        private final Options options;
+        private final byte[] corpus;
+
+        EncodeBenchmark(final String name, final Options options,
+                final byte[] corpus) {
+            super(name, "MB");
+            this.options = options;
+            this.corpus = corpus;
+        }
+
+        @Override
+        long run() throws IOException {
+            sink += Coder.encode(corpus, options).length;
+            return corpus.length;
+        }
+    }
+
+    private static final class DecodeBenchmark extends Benchmark {
+
+        private final Options options;
+        private final byte[] corpus;
+        private byte[] encoded;
+
+        DecodeBenchmark(final String name, final Options options,
+                final byte[] corpus) {
+            super(name, "MB");
+            this.options = options;
+            this.corpus = corpus;
+        }
+
+        @Override
+        void setUp() throws IOException {
+            if (encoded == null) {
+                encoded = Coder.encode(corpus, options);
+            }
+        }
+
+        @Override
+        long run() throws IOException {
+            sink += Coder.decode(encoded).length;
+            return corpus.length;
+        }
+    }
+
+    private static final class ComputeHashesBenchmark extends Benchmark {
+
+        private final Options options;
+        private final byte[] symbols;
+        private Encoder encoder;
+
+        ComputeHashesBenchmark(final String name, final Options options,
+                final byte[] symbols) {
+            super(name, "MB");
+            this.options = options;
+            this.symbols = symbols;
+        }
+
+        @Override
+        void setUp() {
+            if (encoder == null) {
+                encoder = newEncoder(options);
+            }
+        }
+
+        @Override
+        long run() {
+            final Encoder localEncoder = encoder;
+            long result = 0;
+            for (final byte symbol : symbols) {
+                localEncoder.updateContext(symbol & 0xff);
+                if (localEncoder.onlyLowLzp) {
+                    localEncoder.computeHashesOnlyLowLzp();
+                } else {
+                    localEncoder.computeHashes();
+                }
+                result += localEncoder.getLzpRecordLow();
+            }
+            sink += result;
+            return symbols.length;
+        }
+    }
+
+    /**
+     * Literals coded by symbol benchmarks. Every symbol is coded as if the
+     * LZP model mispredicted it as the preceding one.
+     */
+    private static int[] mispredictedSymbols(final byte[] symbols) {
+        final int[] result = new int[symbols.length];
+        for (int i = 0; i < symbols.length; i++) {
+            final int previous = i == 0 ? 0 : symbols[i - 1] & 0xff;
+            result[i] = previous == (symbols[i] & 0xff) ? previous ^ 1
+                    : previous;
+        }
+        return result;
+    }
+
+    private static final class EncodeSymbolBenchmark extends Benchmark {
+
+        private final Options options;
+        private final byte[] symbols;
+        private final int[] mispredicted;
+        private Encoder encoder;
+
+        EncodeSymbolBenchmark(final String name, final Options options,
+                final byte[] symbols) {
+            super(name, "MB");
+            this.options = options;
+            this.symbols = symbols;
+            mispredicted = mispredictedSymbols(symbols);
+        }
+
+        @Override
+        void setUp() {
+            if (encoder == null) {
+                encoder = newEncoder(options);
+            }
+        }
+
+        @Override
+        long run() throws IOException {
+            final Encoder localEncoder = encoder;
+            for (int i = 0; i < symbols.length; i++) {
+                final int symbol = symbols[i] & 0xff;
+                localEncoder.computeLiteralCoderContext();
+                localEncoder.encodeSymbol(symbol, mispredicted[i]);
+                localEncoder.updateContext(symbol);
+            }
+            return symbols.length;
+        }
+    }
+
+    private static final class DecodeSymbolBenchmark extends Benchmark {
+
+        private final Options options;
+        private final byte[] symbols;
+        private final int[] mispredicted;
+        private byte[] encoded;
+        private Decoder decoder;
+
+        DecodeSymbolBenchmark(final String name, final Options options,
+                final byte[] symbols) {
+            super(name, "MB");
+            this.options = options;
+            this.symbols = symbols;
+            mispredicted = mispredictedSymbols(symbols);
+        }
+
+        @Override
+        void setUp() throws IOException {
+            if (encoded == null) {
+                final GrowingOutputWindow output =
+                        new GrowingOutputWindow(symbols.length);
+                final Encoder encoder = new Encoder(new BufferInputWindow(
+                        ByteBuffer.allocate(0)), output, options,
+                        Settings.Default);
+                for (int i = 0; i < symbols.length; i++) {
+                    final int symbol = symbols[i] & 0xff;
+                    encoder.computeLiteralCoderContext();
+                    encoder.encodeSymbol(symbol, mispredicted[i]);
+                    encoder.updateContext(symbol);
+                }
+                encoder.flush();
+                final ByteBuffer result = output.result();
+                encoded = new byte[result.remaining()];
+                result.get(encoded);
+            }
+            decoder = new Decoder(new BufferInputWindow(
+                    ByteBuffer.wrap(encoded)), new DiscardingOutputWindow(
+                    OutputWindow.DefaultSize), options, Settings.Default);
+            decoder.decode(0);
+        }
+
+        @Override
+        long run() throws IOException {
+            final Decoder localDecoder = decoder;
+            for (int i = 0; i < symbols.length; i++) {
+                final int symbol = localDecoder.decodeSymbol(mispredicted[i]);
+                if (symbol != (symbols[i] & 0xff)) {
+                    throw new IllegalStateException("Decoded wrong symbol.");
+                }
+                localDecoder.updateContext(symbol);
+            }
+            return symbols.length;
+        }
+    }
+
+    private static final class RescaleBenchmark extends Benchmark {
+
+        private static final int Calls = 1 << 16;
+        private final Options options;
+        private Encoder encoder;
+
+        RescaleBenchmark(final String name, final Options options) {
+            super(name, "Mop");
+            this.options = options;
+        }
+
+        @Override
+        void setUp() {
+            if (encoder == null) {
+                encoder = newEncoder(options);
+                encoder.computeLiteralCoderContext();
+            }
+        }
+
+        @Override
+        long run() {
+            final Encoder localEncoder = encoder;
+            long result = 0;
+            for (int i = 0; i < Calls; i++) {
+                localEncoder.rescaleLiteralCoder();
+                result += localEncoder.rangesTotal[0];
+            }
+            sink += result;
+            return Calls;
+        }
+    }
+
+    private static final class NLog2Benchmark extends Benchmark {
+
+        private static final int Calls = 1 << 24;
+
+        NLog2Benchmark(final String name) {
+            super(name, "Mop");
+        }
+
+        @Override
+        long run() {
+            long result = 0;
+            for (int i = 0; i < Calls; i++) {
+                result += Lg2.nLog2((i & 0x7ffe) + 1);
+            }
+            sink += result;
+            return Calls;
+        }
+    }// </editor-fold>
+    // <editor-fold defaultstate="collapsed" desc="Measurement">
+
+    private static long allocatedBytes(final ThreadMXBean threadBean) {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadBean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        } else {
+            return -1;
+        }
+    }
+
+    private static void measure(final PrintStream out,
+            final Benchmark benchmark, final int warmupIterations,
+            final int measuredIterations) throws IOException {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final double[] scores = new double[measuredIterations];
+        double allocationRate = 0;
+        for (int i = 0; i < warmupIterations + measuredIterations; i++) {
+            benchmark.setUp();
+            final long allocatedBefore = allocatedBytes(threadBean);
+            final long startTime = System.nanoTime();
+            final long units = benchmark.run();
+            final long elapsed = Math.max(System.nanoTime() - startTime, 1);
+            final long allocated = allocatedBytes(threadBean)
+                    - allocatedBefore;
+            if (i >= warmupIterations) {
+                scores[i - warmupIterations] = units * 1e3 / elapsed;
+                allocationRate += allocatedBefore < 0 ? Double.NaN
+                        : allocated * 1e3 / elapsed / measuredIterations;
+            }
+        }
+        double mean = 0;
+        for (final double score : scores) {
+            mean += score / scores.length;
+        }
+        double variance = 0;
+        for (final double score : scores) {
+            variance += (score - mean) * (score - mean) / scores.length;
+        }
+        out.println(String.format("%-36s %10.2f %9.2f %8s %12.2f",
+                benchmark.name, mean, Math.sqrt(variance),
+                benchmark.unit + "/s", allocationRate));
+    }// </editor-fold>
+
+    /**
+     * Runs benchmarks with names containing given filter and prints results
+     * to given stream.
+     */
+    public static void run(final PrintStream out, final String filter,
+            final int corpusSize, final int warmupIterations,
+            final int measuredIterations) throws IOException {
+        if (corpusSize <= 0 || warmupIterations < 0
+                || measuredIterations <= 0) {
+            throw new IllegalArgumentException(
+                    "Corpus size and measured iterations have to be positive.");
+        }
+        out.println(String.format("%-36s %10s %9s %8s %12s", "benchmark",
+                "score", "stdev", "unit", "alloc MB/s"));
+        for (final Benchmark benchmark
+                : new Benchmarks(corpusSize).createBenchmarks()) {
+            if (filter == null || benchmark.name.contains(filter)) {
+                measure(out, benchmark, warmupIterations, measuredIterations);
+            }
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import com.github.tarsa.tarsalzp.Options;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Multi-block container. Layout (all numbers big endian):
+ * <pre>
+ * header (8), container marker (8), packed options (8), block size (8)
+ * for every block:
+ *     uncompressed length (4), compressed length (4), raw encoded stream
+ * terminator: two zero lengths (4 + 4)
+ * block index: blocks count (8), frame offset of every block (8 each)
+ * block index offset (8)
+ * </pre>
+ * Offsets are relative to the beginning of the container. Every block
+ * except the last one holds exactly block size bytes of uncompressed data.
+ * If options have the checksum flag, raw encoded streams end with CRC32C of
+ * the block (4), counted in the compressed length.
+ *
+ * @author Piotr Tarsa
+ */
+final class BlockCoder {
+
+    static final int PreambleLength = 32;
+    static final int FrameHeaderLength = 8;
+
+    /**
+     * Upper bound of the compressed length of a block. A symbol costs at
+     * most two mispredicted flags and a literal, below 32 bits, as adaptive
+     * probabilities and literal frequencies are bounded.
+     */
+    static long maxCompressedLength(final int uncompressedLength) {
+        return uncompressedLength * 33L / 8 + 64;
+    }
+
+    private BlockCoder() {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Primitives serialization">
+    static long readLong(final InputStream inputStream) throws IOException {
+        return readLong(inputStream, 8);
+    }
+
+    static int readInt(final InputStream inputStream) throws IOException {
+        return (int) readLong(inputStream, 4);
+    }
+
+    private static long readLong(final InputStream inputStream,
+            final int bytesNumber) throws IOException {
+        long value = 0;
+        for (int i = 0; i < bytesNumber; i++) {
+            value <<= 8;
+            final int inputByte = inputStream.read();
+            if (inputByte == -1) {
+                throw new IOException("Unexpected end of file.");
+            }
+            value |= inputByte;
+        }
+        return value;
+    }
+
+    static void writeLong(final OutputStream outputStream, final long value)
+            throws IOException {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            outputStream.write((int) (value >>> shift) & 0xff);
+        }
+    }
+
+    static void writeInt(final OutputStream outputStream, final int value)
+            throws IOException {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            outputStream.write((value >>> shift) & 0xff);
+        }
+    }
+
+    static void writeBuffer(final OutputStream outputStream,
+            final ByteBuffer buffer) throws IOException {
+        outputStream.write(buffer.array(), buffer.arrayOffset()
+                + buffer.position(), buffer.remaining());
+    }
+
+    static void readFully(final InputStream inputStream, final byte[] buffer)
+            throws IOException {
+        int filled = 0;
+        while (filled < buffer.length) {
+            final int read = inputStream.read(buffer, filled,
+                    buffer.length - filled);
+            if (read == -1) {
+                throw new EOFException("Unexpected end of file.");
+            }
+            filled += read;
+        }
+    }
+
+    static void writeFully(final WritableByteChannel channel,
+            final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static void readFully(final ReadableByteChannel channel,
+            final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                throw new EOFException("Unexpected end of file.");
+            }
+        }
+    }
+
+    /**
+     * Reads up to blockSize bytes, stopping early only at the end of input.
+     */
+    static byte[] readBlock(final InputStream inputStream,
+            final int blockSize) throws IOException {
+        final byte[] buffer = new byte[blockSize];
+        int filled = 0;
+        while (filled < blockSize) {
+            final int read = inputStream.read(buffer, filled,
+                    blockSize - filled);
+            if (read == -1) {
+                final byte[] result = new byte[filled];
+                System.arraycopy(buffer, 0, result, 0, filled);
+                return result;
+            }
+            filled += read;
+        }
+        return buffer;
+    }// </editor-fold>
+    // <editor-fold defaultstate="collapsed" desc="Tasks">
+
+    private static final class EncodingTask implements Callable<ByteBuffer> {
+
+        private final byte[] block;
+        private final Options options;
+        private final Settings settings;
+
+        EncodingTask(final byte[] block, final Options options,
+                final Settings settings) {
+            this.block = block;
+            this.options = options;
+            this.settings = settings;
+        }
+
+        @Override
+        public ByteBuffer call() throws IOException {
+            return Coder.encodeRaw(ByteBuffer.wrap(block), options, settings);
+        }
+    }
+
+    private static final class DecodingTask implements Callable<ByteBuffer> {
+
+        private final byte[] block;
+        private final int uncompressedLength;
+        private final Options options;
+        private final Settings settings;
+
+        DecodingTask(final byte[] block, final int uncompressedLength,
+                final Options options, final Settings settings) {
+            this.block = block;
+            this.uncompressedLength = uncompressedLength;
+            this.options = options;
+            this.settings = settings;
+        }
+
+        @Override
+        public ByteBuffer call() throws IOException {
+            final ByteBuffer input = ByteBuffer.wrap(block);
+            final ByteBuffer result = Coder.decodeRaw(input, options,
+                    settings, uncompressedLength);
+            if (input.hasRemaining()
+                    || result.remaining() != uncompressedLength) {
+                throw new IOException("Corrupted block.");
+            }
+            return result;
+        }
+    }
+
+    private static final class PendingBlock {
+
+        final int uncompressedLength;
+        final Future<ByteBuffer> result;
+
+        PendingBlock(final int uncompressedLength,
+                final Future<ByteBuffer> result) {
+            this.uncompressedLength = uncompressedLength;
+            this.result = result;
+        }
+    }
+
+    static <T> T await(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted.");
+        } catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }// </editor-fold>
+
+    static void encode(final InputStream inputStream,
+            final OutputStream outputStream, final Coder.Callback callback,
+            final Options options, final Settings settings,
+            final int blockSize, final int threadsNumber) throws IOException {
+        final byte[] firstBlock = readBlock(inputStream, blockSize);
+        byte[] block = firstBlock.length < blockSize ? new byte[0]
+                : readBlock(inputStream, blockSize);
+        if (block.length == 0) {
+            Coder.encode(new ByteArrayInputStream(firstBlock), outputStream,
+                    callback, blockSize, options, settings);
+            return;
+        }
+        writeLong(outputStream, Coder.HeaderValue);
+        writeLong(outputStream, Coder.BlockContainerMarker);
+        writeLong(outputStream, options.toPacked());
+        writeLong(outputStream, blockSize);
+        final List<Long> frameOffsets = new ArrayList<Long>();
+        long currentOffset = PreambleLength;
+        long totalAmountProcessed = 0;
+        final Deque<PendingBlock> pendingBlocks =
+                new ArrayDeque<PendingBlock>();
+        final ExecutorService executor =
+                Executors.newFixedThreadPool(threadsNumber);
+        try {
+            pendingBlocks.add(new PendingBlock(firstBlock.length,
+                    executor.submit(new EncodingTask(firstBlock, options,
+                    settings))));
+            while (block.length > 0 || !pendingBlocks.isEmpty()) {
+                if (block.length > 0) {
+                    pendingBlocks.add(new PendingBlock(block.length,
+                            executor.submit(new EncodingTask(block, options,
+                            settings))));
+                    block = block.length < blockSize ? new byte[0]
+                            : readBlock(inputStream, blockSize);
+                }
+                if (block.length == 0
+                        || pendingBlocks.size() > threadsNumber) {
+                    final PendingBlock pendingBlock =
+                            pendingBlocks.removeFirst();
+                    final ByteBuffer encoded = await(pendingBlock.result);
+                    frameOffsets.add(currentOffset);
+                    writeInt(outputStream, pendingBlock.uncompressedLength);
+                    writeInt(outputStream, encoded.remaining());
+                    currentOffset += FrameHeaderLength + encoded.remaining();
+                    writeBuffer(outputStream, encoded);
+                    totalAmountProcessed += pendingBlock.uncompressedLength;
+                    if (callback != null) {
+                        callback.progressChanged(totalAmountProcessed);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        writeInt(outputStream, 0);
+        writeInt(outputStream, 0);
+        final long indexOffset = currentOffset + FrameHeaderLength;
+        writeLong(outputStream, frameOffsets.size());
+        for (final long frameOffset : frameOffsets) {
+            writeLong(outputStream, frameOffset);
+        }
+        writeLong(outputStream, indexOffset);
+    }
+
+    /**
+     * Decodes a container whose header and marker were already consumed.
+     */
+    static void decode(final InputStream inputStream,
+            final OutputStream outputStream, final Coder.Callback callback,
+            final Settings settings, final int threadsNumber)
+            throws IOException {
+        final Options options = Coder.unpackOptions(readLong(inputStream));
+        final long blockSize = readLong(inputStream);
+        if (blockSize <= 0 || blockSize > Integer.MAX_VALUE) {
+            throw new IOException("Invalid block size.");
+        }
+        final List<Long> frameOffsets = new ArrayList<Long>();
+        long currentOffset = PreambleLength;
+        long totalAmountProcessed = 0;
+        boolean lastBlockSeen = false;
+        boolean shortBlockSeen = false;
+        final Deque<PendingBlock> pendingBlocks =
+                new ArrayDeque<PendingBlock>();
+        final ExecutorService executor =
+                Executors.newFixedThreadPool(threadsNumber);
+        try {
+            while (!lastBlockSeen || !pendingBlocks.isEmpty()) {
+                if (!lastBlockSeen) {
+                    final int uncompressedLength = readInt(inputStream);
+                    final int compressedLength = readInt(inputStream);
+                    if (uncompressedLength == 0 && compressedLength == 0) {
+                        lastBlockSeen = true;
+                    } else if (uncompressedLength <= 0
+                            || uncompressedLength > blockSize
+                            || shortBlockSeen || compressedLength <= 0
+                            || compressedLength > maxCompressedLength(
+                            uncompressedLength)) {
+                        throw new IOException("Invalid block frame.");
+                    } else {
+                        shortBlockSeen = uncompressedLength != blockSize;
+                        final byte[] encoded = new byte[compressedLength];
+                        readFully(inputStream, encoded);
+                        frameOffsets.add(currentOffset);
+                        currentOffset += FrameHeaderLength + compressedLength;
+                        pendingBlocks.add(new PendingBlock(uncompressedLength,
+                                executor.submit(new DecodingTask(encoded,
+                                uncompressedLength, options, settings))));
+                    }
+                }
+                if (!pendingBlocks.isEmpty() && (lastBlockSeen
+                        || pendingBlocks.size() > threadsNumber)) {
+                    final PendingBlock pendingBlock =
+                            pendingBlocks.removeFirst();
+                    writeBuffer(outputStream, await(pendingBlock.result));
+                    totalAmountProcessed += pendingBlock.uncompressedLength;
+                    if (callback != null) {
+                        callback.progressChanged(totalAmountProcessed);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        final long indexOffset = currentOffset + FrameHeaderLength;
+        if (readLong(inputStream) != frameOffsets.size()) {
+            throw new IOException("Block index does not match blocks.");
+        }
+        for (final long frameOffset : frameOffsets) {
+            if (readLong(inputStream) != frameOffset) {
+                throw new IOException("Block index does not match blocks.");
+            }
+        }
+        if (readLong(inputStream) != indexOffset) {
+            throw new IOException("Block index does not match blocks.");
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+/**
+ * Chunk of input symbols together with intermediate results of the
+ * separate coding passes. Arrays are allocated once and reused.
+ *
+ * @author Piotr Tarsa
+ */
+final class Chunk {
+
+    static final int DefaultCapacity = 1 << 16;
+    // filled when reading input
+    final byte[] symbols;
+    int length;
+    long startContext;
+    boolean last;
+    // filled by LZP passes
+    final short[] lzpLowRecords;
+    final short[] lzpHighRecords;
+    // filled by APM pass
+    final short[] probabilities;
+    final byte[] predictedSymbols;
+
+    Chunk(final int capacity) {
+        symbols = new byte[capacity];
+        lzpLowRecords = new short[capacity];
+        lzpHighRecords = new short[capacity];
+        probabilities = new short[capacity];
+        predictedSymbols = new byte[capacity];
+    }
+
+    int capacity() {
+        return symbols.length;
+    }
+
+    /**
+     * Computes the context seen before symbol at given index.
+     */
+    long contextAt(final int index) {
+        long context = index >= 8 ? 0 : startContext;
+        for (int i = Math.max(0, index - 8); i < index; i++) {
+            context = (context << 8) | (symbols[i] & 0xff);
+        }
+        return context;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs two processing stages on dedicated threads and hands the processed
+ * chunks to the consuming thread. Chunks circulate in a bounded ring and
+ * every stage publishes its progress through its own cursor, so there are
+ * no locks on the hot path. Every cursor is written by exactly one thread.
+ *
+ * @author Piotr Tarsa
+ */
+final class ChunkPipeline {
+
+    interface Stage {
+
+        /**
+         * Processes chunk. First stage also marks the last chunk.
+         */
+        void process(final Chunk chunk) throws IOException;
+    }
+    private final Chunk[] ring;
+    private final int ringMask;
+    private final Stage firstStage;
+    private final Stage secondStage;
+    private final AtomicLong firstCursor = new AtomicLong();
+    private final AtomicLong secondCursor = new AtomicLong();
+    private final AtomicLong consumerCursor = new AtomicLong();
+    private volatile Throwable failure;
+    private volatile boolean closed;
+    private boolean started;
+    private Thread firstThread;
+    private Thread secondThread;
+
+    /**
+     * @param ringSizeLog2 binary logarithm of number of chunks in the ring
+     * @param chunkCapacity number of symbols in each chunk
+     */
+    ChunkPipeline(final int ringSizeLog2, final int chunkCapacity,
+            final Stage firstStage, final Stage secondStage) {
+        ring = new Chunk[1 << ringSizeLog2];
+        ringMask = ring.length - 1;
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new Chunk(chunkCapacity);
+        }
+        this.firstStage = firstStage;
+        this.secondStage = secondStage;
+    }
+
+    private void await(final AtomicLong cursor, final long value)
+            throws InterruptedException {
+        int spins = 0;
+        while (cursor.get() < value) {
+            if (closed || failure != null) {
+                throw new InterruptedException();
+            }
+            if (++spins < 100) {
+                continue;
+            } else if (spins < 200) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(20000);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+    }
+
+    private final class StageRunner implements Runnable {
+
+        private final Stage stage;
+        private final AtomicLong inputCursor;
+        private final long inputOffset;
+        private final AtomicLong outputCursor;
+
+        /**
+         * Stage processes chunk n when input cursor exceeds n - offset.
+         */
+        StageRunner(final Stage stage, final AtomicLong inputCursor,
+                final long inputOffset, final AtomicLong outputCursor) {
+            this.stage = stage;
+            this.inputCursor = inputCursor;
+            this.inputOffset = inputOffset;
+            this.outputCursor = outputCursor;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (long sequence = 0;; sequence++) {
+                    await(inputCursor, sequence - inputOffset + 1);
+                    final Chunk chunk = ring[(int) sequence & ringMask];
+                    stage.process(chunk);
+                    outputCursor.lazySet(sequence + 1);
+                    if (chunk.last) {
+                        break;
+                    }
+                }
+            } catch (final InterruptedException ex) {
+            } catch (final Throwable ex) {
+                failure = ex;
+            }
+        }
+    }
+
+    private void start() {
+        firstThread = new Thread(new StageRunner(firstStage,
+                consumerCursor, ring.length, firstCursor),
+                "TarsaLZP pipeline stage 1");
+        secondThread = new Thread(new StageRunner(secondStage,
+                firstCursor, 0, secondCursor), "TarsaLZP pipeline stage 2");
+        firstThread.setDaemon(true);
+        secondThread.setDaemon(true);
+        firstThread.start();
+        secondThread.start();
+        started = true;
+    }
+
+    /**
+     * Waits for the next chunk processed by both stages. Previously acquired
+     * chunk has to be released first.
+     */
+    Chunk acquire() throws IOException {
+        if (!started) {
+            start();
+        }
+        final long sequence = consumerCursor.get();
+        try {
+            await(secondCursor, sequence + 1);
+        } catch (final InterruptedException ex) {
+            final Throwable cause = failure;
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else if (cause != null) {
+                throw new IOException(cause);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Pipeline closed.");
+        }
+        return ring[(int) sequence & ringMask];
+    }
+
+    /**
+     * Returns the acquired chunk to the first stage.
+     */
+    void release() {
+        consumerCursor.lazySet(consumerCursor.get() + 1);
+    }
+
+    /**
+     * Stops stage threads that are still running and waits for them, so
+     * they no longer touch the model when this method returns.
+     */
+    void close() {
+        closed = true;
+        if (started) {
+            boolean interrupted = false;
+            for (final Thread thread : new Thread[]{firstThread,
+                        secondThread}) {
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (final InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
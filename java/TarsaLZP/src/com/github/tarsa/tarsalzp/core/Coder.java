@@ -31,9 +31,14 @@
 package com.github.tarsa.tarsalzp.core;
 
 import com.github.tarsa.tarsalzp.Options;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  *
@@ -42,40 +47,34 @@ import java.io.OutputStream;
 public final class Coder {
 
     public static final long HeaderValue = 2345174324078614718l;
+    /**
+     * Version marker following the header in multi-block containers. Its
+     * highest byte is zero, so older readers reject it as invalid options.
+     */
+    public static final long BlockContainerMarker = 0x00424c4f434b5331l;
+    public static final int DefaultBlockSize = 32 << 20;
+    /**
+     * Limit of the initial output buffer when decoded length is only
+     * guessed. The buffer grows further as needed.
+     */
+    private static final int MaxGuessedLength = 1 << 30;
 
     public interface Callback {
 
         void progressChanged(final long processedSymbols);
     }
 
-    public static Options getOptions(final InputStream inputStream)
+    static void checkHeader(final InputStream inputStream)
             throws IOException {
-        long header = 0;
-        for (int i = 0; i < 8; i++) {
-            header <<= 8;
-            final int inputByte = inputStream.read();
-            if (inputByte == -1) {
-                throw new IOException("Unexpected end of file.");
-            }
-            header |= inputByte;
-        }
-        if (header != HeaderValue) {
+        if (BlockCoder.readLong(inputStream) != HeaderValue) {
             throw new IOException("Wrong file header. Probably not a "
                     + "compressed file.");
         }
-        return getOptionsHeaderless(inputStream);
     }
 
-    public static Options getOptionsHeaderless(final InputStream inputStream)
-            throws IOException {
-        long packedOptions = 0;
-        for (int i = 0; i < 8; i++) {
-            packedOptions <<= 8;
-            final int inputByte = inputStream.read();
-            if (inputByte == -1) {
-                throw new IOException("Unexpected end of file.");
-            }
-            packedOptions |= inputByte;
+    static Options unpackOptions(final long packedOptions) {
+        if (packedOptions == ArchiveCoder.ArchiveMarker) {
+            throw new IllegalArgumentException("Archive, use extract/list.");
         }
         final Options result = Options.fromPacked(packedOptions);
         if (result == null) {
@@ -84,28 +83,148 @@ public final class Coder {
             return result;
         }
     }
+
+    public static Options getOptions(final InputStream inputStream)
+            throws IOException {
+        checkHeader(inputStream);
+        final long packedOptions = BlockCoder.readLong(inputStream);
+        return unpackOptions(packedOptions == BlockContainerMarker
+                || packedOptions == ArchiveCoder.ArchiveMarker
+                ? BlockCoder.readLong(inputStream) : packedOptions);
+    }
+
+    public static Options getOptionsHeaderless(final InputStream inputStream)
+            throws IOException {
+        return unpackOptions(BlockCoder.readLong(inputStream));
+    }
     
-    private static void checkInterval(final long intervalLength) {
+    static void checkInterval(final long intervalLength) {
         if (intervalLength <= 0) {
             throw new IllegalArgumentException(
                     "Interval length has to be positive.");
         }
     }
 
+    private static void checkThreadsNumber(final int threadsNumber) {
+        if (threadsNumber <= 0) {
+            throw new IllegalArgumentException(
+                    "Threads number has to be positive.");
+        }
+    }
+
     public static void decode(final InputStream inputStream,
             final OutputStream outputStream, final Callback callback,
             final long intervalLength) throws IOException {
+        decodeParallel(inputStream, outputStream, callback, intervalLength, 1);
+    }
+
+    /**
+     * Decodes both single stream and multi-block container formats. Blocks
+     * of a container are decoded concurrently using given number of threads.
+     */
+    public static void decodeParallel(final InputStream inputStream,
+            final OutputStream outputStream, final Callback callback,
+            final long intervalLength, final int threadsNumber)
+            throws IOException {
+        decodeParallel(inputStream, outputStream, callback, intervalLength,
+                threadsNumber, Settings.Default);
+    }
+
+    public static void decodeParallel(final InputStream inputStream,
+            final OutputStream outputStream, final Callback callback,
+            final long intervalLength, final int threadsNumber,
+            final Settings settings) throws IOException {
         checkInterval(intervalLength);
-        final Options options = getOptions(inputStream);
-        decodeRaw(inputStream, outputStream, callback, intervalLength, options);
+        checkThreadsNumber(threadsNumber);
+        checkHeader(inputStream);
+        final long packedOptions = BlockCoder.readLong(inputStream);
+        if (packedOptions == BlockContainerMarker) {
+            BlockCoder.decode(inputStream, outputStream, callback, settings,
+                    threadsNumber);
+        } else {
+            decodeRaw(inputStream, outputStream, callback, intervalLength,
+                    unpackOptions(packedOptions), settings);
+        }
+    }
+
+    /**
+     * Decodes a stream or a container without storing decoded data. This
+     * verifies checksums of streams that have them and structure of all
+     * streams.
+     *
+     * @return number of decoded bytes
+     */
+    public static long test(final InputStream inputStream,
+            final Callback callback, final long intervalLength,
+            final int threadsNumber, final Settings settings)
+            throws IOException {
+        checkInterval(intervalLength);
+        checkThreadsNumber(threadsNumber);
+        checkHeader(inputStream);
+        final DiscardingOutputWindow output = new DiscardingOutputWindow(
+                OutputWindow.DefaultSize);
+        final long packedOptions = BlockCoder.readLong(inputStream);
+        if (packedOptions == BlockContainerMarker) {
+            BlockCoder.decode(inputStream, new WindowOutputStream(output),
+                    callback, settings, threadsNumber);
+            output.flush();
+        } else {
+            doDecode(new Decoder(new StreamInputWindow(inputStream,
+                    InputWindow.DefaultSize, true), output,
+                    unpackOptions(packedOptions), settings), callback,
+                    intervalLength);
+        }
+        return output.getDiscarded();
     }
 
     public static void decodeRaw(final InputStream inputStream,
             final OutputStream outputStream, final Callback callback,
             final long intervalLength, final Options options)
             throws IOException {
+        decodeRaw(inputStream, outputStream, callback, intervalLength, options,
+                Settings.Default);
+    }
+
+    public static void decodeRaw(final InputStream inputStream,
+            final OutputStream outputStream, final Callback callback,
+            final long intervalLength, final Options options,
+            final Settings settings) throws IOException {
+        checkInterval(intervalLength);
+        doDecode(new Decoder(inputStream, outputStream, options, settings),
+                callback, intervalLength);
+    }
+
+    /**
+     * Decodes a stream or a container starting at the position of memory
+     * mapped input file. Input channel position is left just after the
+     * decoded data.
+     */
+    public static void decodeMapped(final FileChannel inputChannel,
+            final WritableByteChannel outputChannel, final Callback callback,
+            final long intervalLength, final int threadsNumber,
+            final Settings settings) throws IOException {
         checkInterval(intervalLength);
-        final Decoder decoder = new Decoder(inputStream, outputStream, options);
+        checkThreadsNumber(threadsNumber);
+        final MappedInputWindow input = new MappedInputWindow(inputChannel);
+        final ChannelOutputWindow output = new ChannelOutputWindow(
+                outputChannel, ChannelOutputWindow.DefaultSize);
+        final InputStream inputStream = new WindowInputStream(input);
+        checkHeader(inputStream);
+        final long packedOptions = BlockCoder.readLong(inputStream);
+        if (packedOptions == BlockContainerMarker) {
+            BlockCoder.decode(inputStream, new WindowOutputStream(output),
+                    callback, settings, threadsNumber);
+            output.flush();
+            input.finish();
+        } else {
+            doDecode(new Decoder(input, output, unpackOptions(packedOptions),
+                    settings), callback, intervalLength);
+        }
+    }
+
+    static void doDecode(final Decoder decoder,
+            final Callback callback, final long intervalLength)
+            throws IOException {
         long totalAmountProcessed = 0;
         while (true) {
             final long currentAmountProcessed = decoder.decode(intervalLength);
@@ -123,42 +242,235 @@ public final class Coder {
             final OutputStream outputStream, final Callback callback,
             final long intervalLength, final Options options)
             throws IOException {
+        encode(inputStream, outputStream, callback, intervalLength, options,
+                Settings.Default);
+    }
+
+    public static void encode(final InputStream inputStream,
+            final OutputStream outputStream, final Callback callback,
+            final long intervalLength, final Options options,
+            final Settings settings) throws IOException {
         checkInterval(intervalLength);
-        final Encoder encoder = new Encoder(inputStream, outputStream, options);
-        long header = HeaderValue;
-        for (int i = 0; i < 8; i++) {
-            outputStream.write((int) (header >>> 56) & 0xff);
-            header <<= 8;
-        }
-        long packedOptions = options.toPacked();
-        for (int i = 0; i < 8; i++) {
-            outputStream.write((int) (packedOptions >>> 56) & 0xff);
-            packedOptions <<= 8;
-        }
+        final Encoder encoder = new Encoder(inputStream, outputStream, options,
+                settings);
+        BlockCoder.writeLong(outputStream, HeaderValue);
+        BlockCoder.writeLong(outputStream, options.toPacked());
         doEncode(encoder, callback, intervalLength);
     }
 
+    /**
+     * Encodes data between the position and the end of memory mapped input
+     * file and writes the result to output channel.
+     */
+    public static void encodeMapped(final FileChannel inputChannel,
+            final WritableByteChannel outputChannel, final Callback callback,
+            final long intervalLength, final Options options,
+            final Settings settings) throws IOException {
+        checkInterval(intervalLength);
+        final ChannelOutputWindow output = new ChannelOutputWindow(
+                outputChannel, ChannelOutputWindow.DefaultSize);
+        output.buffer.putLong(HeaderValue);
+        output.buffer.putLong(options.toPacked());
+        doEncode(new Encoder(new MappedInputWindow(inputChannel), output,
+                options, settings), callback, intervalLength);
+    }
+
+    /**
+     * Splits input into independently coded blocks and encodes them
+     * concurrently using given number of threads. Input that fits in a
+     * single block is encoded exactly as by {@link #encode}.
+     */
+    public static void encodeParallel(final InputStream inputStream,
+            final OutputStream outputStream, final Callback callback,
+            final Options options, final int blockSize,
+            final int threadsNumber) throws IOException {
+        encodeParallel(inputStream, outputStream, callback, options,
+                blockSize, threadsNumber, Settings.Default);
+    }
+
+    public static void encodeParallel(final InputStream inputStream,
+            final OutputStream outputStream, final Callback callback,
+            final Options options, final int blockSize,
+            final int threadsNumber, final Settings settings)
+            throws IOException {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException(
+                    "Block size has to be positive.");
+        }
+        checkThreadsNumber(threadsNumber);
+        BlockCoder.encode(inputStream, outputStream, callback, options,
+                settings, blockSize, threadsNumber);
+    }
+
     public static void encodeRaw(final InputStream inputStream,
             final OutputStream outputStream, final Callback callback,
             final long intervalLength, final Options options)
             throws IOException {
+        encodeRaw(inputStream, outputStream, callback, intervalLength, options,
+                Settings.Default);
+    }
+
+    public static void encodeRaw(final InputStream inputStream,
+            final OutputStream outputStream, final Callback callback,
+            final long intervalLength, final Options options,
+            final Settings settings) throws IOException {
         checkInterval(intervalLength);
-        final Encoder encoder = new Encoder(inputStream, outputStream, options);
+        final Encoder encoder = new Encoder(inputStream, outputStream, options,
+                settings);
         doEncode(encoder, callback, intervalLength);
     }
 
-    private static void doEncode(final Encoder encoder, final Callback callback,
+    /**
+     * Encodes remaining bytes of input buffer, header included.
+     *
+     * @return heap buffer with encoded stream, ready for reading
+     */
+    public static ByteBuffer encode(final ByteBuffer input,
+            final Options options) throws IOException {
+        return encode(input, options,
+                Settings.defaultFor(options, input.remaining()));
+    }
+
+    public static ByteBuffer encode(final ByteBuffer input,
+            final Options options, final Settings settings)
+            throws IOException {
+        final GrowingOutputWindow output = new GrowingOutputWindow(
+                input.remaining() / 2 + 64);
+        output.buffer.putLong(HeaderValue);
+        output.buffer.putLong(options.toPacked());
+        doEncode(new Encoder(new BufferInputWindow(input), output, options,
+                settings), null, Long.MAX_VALUE);
+        return output.result();
+    }
+
+    public static byte[] encode(final byte[] input, final Options options)
+            throws IOException {
+        return toArray(encode(ByteBuffer.wrap(input), options));
+    }
+
+    public static ByteBuffer encodeRaw(final ByteBuffer input,
+            final Options options) throws IOException {
+        return encodeRaw(input, options,
+                Settings.defaultFor(options, input.remaining()));
+    }
+
+    static ByteBuffer encodeRaw(final ByteBuffer input, final Options options,
+            final Settings settings) throws IOException {
+        final GrowingOutputWindow output = new GrowingOutputWindow(
+                input.remaining() / 2 + 64);
+        doEncode(new Encoder(new BufferInputWindow(input), output, options,
+                settings), null, Long.MAX_VALUE);
+        return output.result();
+    }
+
+    /**
+     * Decodes a stream or a container starting at the position of input
+     * buffer. The position is left just after the decoded data.
+     *
+     * @return heap buffer with decoded data, ready for reading
+     */
+    public static ByteBuffer decode(final ByteBuffer input)
+            throws IOException {
+        Settings settings = Settings.Default;
+        if (input.remaining() >= 16) {
+            final Options options = Options.fromPacked(
+                    input.getLong(input.position() + 8));
+            if (options != null) {
+                settings = Settings.defaultFor(options, input.remaining());
+            }
+        }
+        return decode(input, settings);
+    }
+
+    public static ByteBuffer decode(final ByteBuffer input,
+            final Settings settings) throws IOException {
+        if (input.remaining() < 16) {
+            throw new IOException("Unexpected end of file.");
+        }
+        if (input.getLong() != HeaderValue) {
+            throw new IOException("Wrong file header. Probably not a "
+                    + "compressed file.");
+        }
+        final long packedOptions = input.getLong();
+        if (packedOptions != BlockContainerMarker) {
+            return decodeRaw(input, unpackOptions(packedOptions), settings);
+        }
+        final byte[] array = new byte[input.remaining()];
+        input.duplicate().get(array);
+        final ByteArrayInputStream inputStream =
+                new ByteArrayInputStream(array);
+        final ByteArrayOutputStream outputStream =
+                new ByteArrayOutputStream();
+        BlockCoder.decode(inputStream, outputStream, null, settings, 1);
+        input.position(input.position() + array.length
+                - inputStream.available());
+        return ByteBuffer.wrap(outputStream.toByteArray());
+    }
+
+    public static byte[] decode(final byte[] input) throws IOException {
+        final ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+        final byte[] result = toArray(decode(inputBuffer));
+        if (inputBuffer.hasRemaining()) {
+            throw new IOException("Not entire input was decoded.");
+        }
+        return result;
+    }
+
+    public static ByteBuffer decodeRaw(final ByteBuffer input,
+            final Options options) throws IOException {
+        return decodeRaw(input, options,
+                Settings.defaultFor(options, input.remaining()));
+    }
+
+    public static ByteBuffer decodeRaw(final ByteBuffer input,
+            final Options options, final Settings settings)
+            throws IOException {
+        return decodeRaw(input, options, settings,
+                guessDecodedLength(input.remaining()));
+    }
+
+    /**
+     * Initial output buffer size for decoding a stream of given compressed
+     * length, when the decoded length is unknown.
+     */
+    static int guessDecodedLength(final int compressedLength) {
+        return (int) Math.min(compressedLength * 2L, MaxGuessedLength);
+    }
+
+    static ByteBuffer decodeRaw(final ByteBuffer input, final Options options,
+            final Settings settings, final int expectedLength)
+            throws IOException {
+        final GrowingOutputWindow output = new GrowingOutputWindow(
+                expectedLength);
+        final Decoder decoder = new Decoder(new BufferInputWindow(input),
+                output, options, settings);
+        decoder.decode(Long.MAX_VALUE);
+        return output.result();
+    }
+
+    private static byte[] toArray(final ByteBuffer buffer) {
+        final byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    static void doEncode(final Encoder encoder, final Callback callback,
             final long intervalLength) throws IOException {
         long totalAmountProcessed = 0;
-        while (true) {
-            final long currentAmountProcessed = encoder.encode(intervalLength);
-            totalAmountProcessed += currentAmountProcessed;
-            if (callback != null) {
-                callback.progressChanged(totalAmountProcessed);
-            }
-            if (currentAmountProcessed < intervalLength) {
-                break;
+        try {
+            while (true) {
+                final long currentAmountProcessed =
+                        encoder.encode(intervalLength);
+                totalAmountProcessed += currentAmountProcessed;
+                if (callback != null) {
+                    callback.progressChanged(totalAmountProcessed);
+                }
+                if (currentAmountProcessed < intervalLength) {
+                    break;
+                }
             }
+        } finally {
+            encoder.close();
         }
         encoder.flush();
     }
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import com.github.tarsa.tarsalzp.Options;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Coders kept for reuse, keyed by options. Pooled coders are reset between
+ * streams instead of allocating their model tables again, which makes
+ * coding many small inputs much cheaper. Methods are thread safe; every
+ * concurrent call uses its own coder.
+ *
+ * @author Piotr Tarsa
+ */
+public final class CoderPool {
+
+    private final Settings settings;
+    private final int maxIdleCoders;
+    private final Map<Options, Deque<Encoder>> idleEncoders =
+            new HashMap<Options, Deque<Encoder>>();
+    private final Map<Options, Deque<Decoder>> idleDecoders =
+            new HashMap<Options, Deque<Decoder>>();
+
+    /**
+     * Creates a pool of coders with lazy tables, which are reset in time
+     * proportional to the part of tables actually used.
+     */
+    public CoderPool() {
+        this(Settings.Default.withLazyTables(true),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param settings settings of all pooled coders
+     * @param maxIdleCoders maximum number of idle encoders and of idle
+     * decoders kept for each options
+     */
+    public CoderPool(final Settings settings, final int maxIdleCoders) {
+        if (maxIdleCoders < 0) {
+            throw new IllegalArgumentException(
+                    "Maximum number of idle coders cannot be negative.");
+        }
+        this.settings = settings;
+        this.maxIdleCoders = maxIdleCoders;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Acquiring and releasing">
+    private static <T> T poll(final Map<Options, Deque<T>> idle,
+            final Options options) {
+        final Deque<T> coders = idle.get(options);
+        return coders == null ? null : coders.pollFirst();
+    }
+
+    private <T> void offer(final Map<Options, Deque<T>> idle,
+            final Options options, final T coder) {
+        Deque<T> coders = idle.get(options);
+        if (coders == null) {
+            coders = new ArrayDeque<T>();
+            idle.put(options, coders);
+        }
+        if (coders.size() < maxIdleCoders) {
+            coders.addFirst(coder);
+        }
+    }
+
+    Encoder acquireEncoder(final Options options, final InputWindow input,
+            final OutputWindow output) {
+        final Encoder encoder;
+        synchronized (this) {
+            encoder = poll(idleEncoders, options);
+        }
+        if (encoder == null) {
+            return new Encoder(input, output, options, settings);
+        } else {
+            encoder.reset(input, output);
+            return encoder;
+        }
+    }
+
+    Decoder acquireDecoder(final Options options, final InputWindow input,
+            final OutputWindow output) {
+        final Decoder decoder;
+        synchronized (this) {
+            decoder = poll(idleDecoders, options);
+        }
+        if (decoder == null) {
+            return new Decoder(input, output, options, settings);
+        } else {
+            decoder.reset(input, output);
+            return decoder;
+        }
+    }
+
+    void release(final Encoder encoder) {
+        encoder.detach();
+        synchronized (this) {
+            offer(idleEncoders, encoder.getOptions(), encoder);
+        }
+    }
+
+    void release(final Decoder decoder) {
+        decoder.detach();
+        synchronized (this) {
+            offer(idleDecoders, decoder.getOptions(), decoder);
+        }
+    }
+
+    /**
+     * Drops all idle coders, so their tables can be garbage collected.
+     */
+    public synchronized void clear() {
+        idleEncoders.clear();
+        idleDecoders.clear();
+    }// </editor-fold>
+
+    public void encode(final InputStream inputStream,
+            final OutputStream outputStream, final Coder.Callback callback,
+            final long intervalLength, final Options options)
+            throws IOException {
+        Coder.checkInterval(intervalLength);
+        BlockCoder.writeLong(outputStream, Coder.HeaderValue);
+        BlockCoder.writeLong(outputStream, options.toPacked());
+        final Encoder encoder = acquireEncoder(options, new StreamInputWindow(
+                inputStream, InputWindow.DefaultSize, false),
+                new StreamOutputWindow(outputStream, OutputWindow.DefaultSize));
+        try {
+            Coder.doEncode(encoder, callback, intervalLength);
+        } finally {
+            release(encoder);
+        }
+    }
+
+    /**
+     * Decodes a single stream with a pooled decoder. Multi-block containers
+     * are decoded without pooling.
+     */
+    public void decode(final InputStream inputStream,
+            final OutputStream outputStream, final Coder.Callback callback,
+            final long intervalLength) throws IOException {
+        Coder.checkInterval(intervalLength);
+        Coder.checkHeader(inputStream);
+        final long packedOptions = BlockCoder.readLong(inputStream);
+        if (packedOptions == Coder.BlockContainerMarker) {
+            BlockCoder.decode(inputStream, outputStream, callback, settings,
+                    1);
+            return;
+        }
+        final Decoder decoder = acquireDecoder(
+                Coder.unpackOptions(packedOptions), new StreamInputWindow(
+                inputStream, InputWindow.DefaultSize, true),
+                new StreamOutputWindow(outputStream, OutputWindow.DefaultSize));
+        try {
+            Coder.doDecode(decoder, callback, intervalLength);
+        } finally {
+            release(decoder);
+        }
+    }
+
+    /**
+     * Works like {@link Coder#encode(ByteBuffer, Options)}.
+     */
+    public ByteBuffer encode(final ByteBuffer input, final Options options)
+            throws IOException {
+        return encode(input, options, null);
+    }
+
+    public byte[] encode(final byte[] input, final Options options)
+            throws IOException {
+        return toArray(encode(ByteBuffer.wrap(input), options));
+    }
+
+    /**
+     * Encodes a single stream starting from the model trained in the
+     * dictionary, with options of the dictionary.
+     */
+    public ByteBuffer encode(final ByteBuffer input,
+            final ModelDictionary dictionary) throws IOException {
+        return encode(input, dictionary.getOptions(), dictionary);
+    }
+
+    public byte[] encode(final byte[] input, final ModelDictionary dictionary)
+            throws IOException {
+        return toArray(encode(ByteBuffer.wrap(input), dictionary));
+    }
+
+    private ByteBuffer encode(final ByteBuffer input, final Options options,
+            final ModelDictionary dictionary) throws IOException {
+        final GrowingOutputWindow output = new GrowingOutputWindow(
+                input.remaining() / 2 + 64);
+        output.buffer.putLong(Coder.HeaderValue);
+        output.buffer.putLong(options.toPacked());
+        final Encoder encoder = acquireEncoder(options,
+                new BufferInputWindow(input), output);
+        try {
+            if (dictionary != null) {
+                encoder.prime(dictionary);
+            }
+            Coder.doEncode(encoder, null, Long.MAX_VALUE);
+        } finally {
+            release(encoder);
+        }
+        return output.result();
+    }
+
+    /**
+     * Works like {@link Coder#decode(ByteBuffer)}. Multi-block containers
+     * are decoded without pooling.
+     */
+    public ByteBuffer decode(final ByteBuffer input) throws IOException {
+        return decode(input, (ModelDictionary) null);
+    }
+
+    public byte[] decode(final byte[] input) throws IOException {
+        return decode(input, (ModelDictionary) null);
+    }
+
+    /**
+     * Decodes a single stream encoded with the dictionary, or without one if
+     * it is null. Multi-block containers are decoded without pooling and
+     * only without a dictionary.
+     */
+    public ByteBuffer decode(final ByteBuffer input,
+            final ModelDictionary dictionary) throws IOException {
+        if (input.remaining() < 16) {
+            throw new IOException("Unexpected end of file.");
+        }
+        final int start = input.position();
+        if (input.getLong() != Coder.HeaderValue) {
+            throw new IOException("Wrong file header. Probably not a "
+                    + "compressed file.");
+        }
+        final long packedOptions = input.getLong();
+        if (packedOptions == Coder.BlockContainerMarker) {
+            if (dictionary != null) {
+                throw new IOException("Multi-block containers cannot be "
+                        + "decoded with a dictionary.");
+            }
+            input.position(start);
+            return Coder.decode(input, settings);
+        }
+        final Options options = Coder.unpackOptions(packedOptions);
+        if (dictionary != null && !options.equals(dictionary.getOptions())) {
+            throw new IOException("Stream was encoded with different "
+                    + "options than the dictionary was trained with.");
+        }
+        final GrowingOutputWindow output = new GrowingOutputWindow(
+                Coder.guessDecodedLength(input.remaining()));
+        final Decoder decoder = acquireDecoder(options,
+                new BufferInputWindow(input), output);
+        try {
+            if (dictionary != null) {
+                decoder.prime(dictionary);
+            }
+            decoder.decode(Long.MAX_VALUE);
+        } finally {
+            release(decoder);
+        }
+        return output.result();
+    }
+
+    public byte[] decode(final byte[] input, final ModelDictionary dictionary)
+            throws IOException {
+        final ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+        final ByteBuffer result = decode(inputBuffer, dictionary);
+        if (inputBuffer.hasRemaining()) {
+            throw new IOException("Not entire input was decoded.");
+        }
+        return toArray(result);
+    }
+
+    private static byte[] toArray(final ByteBuffer buffer) {
+        final byte[] array = new byte[buffer.remaining()];
+        buffer.get(array);
+        return array;
+    }
+}
@@ -31,8 +31,10 @@
 package com.github.tarsa.tarsalzp.core;
 
 import com.github.tarsa.tarsalzp.Options;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 
 /**
@@ -42,9 +44,14 @@ import java.util.Arrays;
 abstract class Common {
 
     // streams section
-    final InputStream inputStream;
-    final OutputStream outputStream;
+    InputWindow input;
+    OutputWindow output;
+    /**
+     * CRC32C of uncompressed data, present if options ask for a trailer.
+     */
+    final BackgroundChecksum checksum;
     // options section
+    private final Options options;
     private final int lzpLowContextLength;
     private final int lzpLowMaskSize;
     private final int lzpHighContextLength;
@@ -55,32 +62,112 @@ abstract class Common {
     private final short literalCoderLimit;
     // Lempel-Ziv Predictive section
     final boolean onlyLowLzp;
-    private final int lzpLowMask;
-    private final int lzpHighMask;
-    private final short[] lzpLow;
-    private final short[] lzpHigh;
+    private final long lzpLowMask;
+    private final long lzpHighMask;
+    private final ShortTable lzpLow;
+    private final ShortTable lzpHigh;
+    /**
+     * Sink for records loaded ahead of time, so the loads aren't eliminated.
+     */
+    private int touchedRecords;
     // Literal coder section
     private final int CostScale = 7;
     private final int literalCoderContextMaskSize;
     private final int literalCoderContextMask;
+    final boolean fenwickLiteralCoder;
     final short[] rangesSingle;
+    /**
+     * Frequencies summed in groups of 16 symbols, used by the grouped
+     * layout.
+     */
     final short[] rangesGrouped;
+    /**
+     * Fenwick trees of frequencies, one per context, used by the Fenwick
+     * layout. Node k (counting from 1) of a tree is stored at offset k - 1
+     * and holds the sum of frequencies of symbols from k - b to k - 1, where
+     * b is the lowest set bit of k.
+     */
+    final short[] rangesTree;
+    private final short[] initialTree;
     final short[] rangesTotal;
+    /**
+     * Literal coder contexts are initialized on first use in given epoch.
+     */
+    private final int[] literalContextEpochs;
+    private int literalEpoch;
     private int recentCost;
+    /**
+     * Cost of a literal coded with fixed probabilities, in bits scaled by
+     * 2^14.
+     */
+    static final int FixedSymbolCost = Lg2.nLog2(255);
+    private long literalCoderRescales;
+    // Stored blocks section
+    /**
+     * Number of symbols coded with fixed probabilities between decisions
+     * about stored blocks.
+     */
+    static final int StoredBlockProbeLength = 256;
+    /**
+     * Limit of the distance between decisions, which grows after every
+     * stored block that didn't reach the maximum length.
+     */
+    static final int StoredBlockMaxProbeInterval = 64 << 10;
+    /**
+     * Maximum number of symbols predicted by LZP models per
+     * StoredBlockProbeLength symbols of a probe, for which a stored block
+     * can follow.
+     */
+    static final int StoredBlockMaxProbeHits = 16;
+    /**
+     * Stored blocks of this length are followed directly by another one.
+     */
+    static final int StoredBlockMaxLength = 256 << 10;
+    /**
+     * Probability of the flag coded after every positive decision, which
+     * tells if stored blocks really follow.
+     */
+    static final int StoredBlockFlagProbability = 0x4000;
+    /**
+     * Number of symbols of a stored block whose LZP records are loaded ahead
+     * of updating them.
+     */
+    private static final int StoredBlockUpdateBatch = 16;
+    final boolean storedBlocks;
+    int symbolsToStoredBlock;
+    int storedBlockProbeHits;
+    int storedBlockProbeInterval;
     // Contexts and hashes section
     private int lastLiteralCoderContext;
     private long context;
-    private int hashLow;
-    private int hashHigh;
+    private long hashLow;
+    private long hashHigh;
     private final int[] precomputedHashes = new int[256];
+    /**
+     * Set for the default shape of LZP contexts (4 and 8 bytes, tables of
+     * at most 2^32 records), which has hashing unrolled.
+     */
+    private final boolean defaultHashingShape;
+    /**
+     * Set when contexts are hashed by multiplying the context word by
+     * a 64-bit odd constant and taking the topmost bits of the product.
+     */
+    private final boolean multiplicativeHash;
+    private final long lzpLowContextMask;
+    private final long lzpHighContextMask;
+    private final int lzpLowHashShift;
+    private final int lzpHighHashShift;
+    private static final long HashMultiplier = 0x9E3779B97F4A7C15L;
     // Adaptive probability map section
     private final short[] apmLow;
     private final short[] apmHigh;
 
-    public Common(final InputStream inputStream,
-            final OutputStream outputStream, final Options options) {
-        this.inputStream = inputStream;
-        this.outputStream = outputStream;
+    public Common(final InputWindow input, final OutputWindow output,
+            final Options options, final Settings settings) {
+        this.input = input;
+        this.output = output;
+        this.options = options;
+        checksum = options.hasChecksum() ? new BackgroundChecksum() : null;
         lzpLowContextLength = (int) options.getLzpLowContextLength();
         lzpLowMaskSize = (int) options.getLzpLowMaskSize();
         lzpHighContextLength = (int) options.getLzpHighContextLength();
@@ -90,44 +177,56 @@ abstract class Common {
         literalCoderStep = (short) options.getLiteralCoderStep();
         literalCoderLimit = (short) options.getLiteralCoderLimit();
         // Lempel-Ziv Predictive init
-        final int lzpLowCount = 1 << lzpLowMaskSize;
-        final int lzpHighCount = 1 << lzpHighMaskSize;
+        final long lzpLowCount = 1L << lzpLowMaskSize;
+        final long lzpHighCount = 1L << lzpHighMaskSize;
         lzpLowMask = lzpLowCount - 1;
         lzpHighMask = lzpHighCount - 1;
-        lzpLow = new short[lzpLowCount];
-        Arrays.fill(lzpLow, (short) 0xffb5);
+        lzpLow = ShortTable.allocate(lzpLowCount, (short) 0xffb5,
+                settings.getTableStorage(), settings.isLazyTables());
         onlyLowLzp = lzpLowContextLength == lzpHighContextLength
                 && lzpLowMaskSize == lzpHighMaskSize;
+        multiplicativeHash = options.isMultiplicativeHash();
+        storedBlocks = options.hasStoredBlocks();
+        lzpLowContextMask = lzpLowContextLength == 8 ? -1L
+                : (1L << lzpLowContextLength * 8) - 1;
+        lzpHighContextMask = lzpHighContextLength == 8 ? -1L
+                : (1L << lzpHighContextLength * 8) - 1;
+        lzpLowHashShift = 64 - lzpLowMaskSize;
+        lzpHighHashShift = 64 - lzpHighMaskSize;
+        defaultHashingShape = !multiplicativeHash && lzpLowContextLength == 4
+                && lzpHighContextLength == (onlyLowLzp ? 4 : 8)
+                && lzpLowMaskSize <= 32 && lzpHighMaskSize <= 32;
         if (onlyLowLzp) {
             lzpHigh = null;
         } else {
-            lzpHigh = new short[lzpHighCount];
-            Arrays.fill(lzpHigh, (short) 0xffb5);
+            lzpHigh = ShortTable.allocate(lzpHighCount, (short) 0xffb5,
+                    settings.getTableStorage(), settings.isLazyTables());
         }
         // Literal coder init
         literalCoderContextMaskSize = 8 * literalCoderOrder;
         literalCoderContextMask = (1 << literalCoderContextMaskSize) - 1;
+        fenwickLiteralCoder = settings.getLiteralCoderLayout()
+                == LiteralCoderLayout.Fenwick;
         rangesSingle = new short[1 << literalCoderContextMaskSize + 8];
-        rangesGrouped = new short[1 << literalCoderContextMaskSize + 4];
+        if (fenwickLiteralCoder) {
+            rangesGrouped = null;
+            rangesTree = new short[1 << literalCoderContextMaskSize + 8];
+            initialTree = new short[256];
+            for (int node = 1; node <= 256; node++) {
+                initialTree[node - 1] = (short) (literalCoderInit
+                        * (node & -node));
+            }
+        } else {
+            rangesGrouped = new short[1 << literalCoderContextMaskSize + 4];
+            rangesTree = null;
+            initialTree = null;
+        }
         rangesTotal = new short[1 << literalCoderContextMaskSize];
-        Arrays.fill(rangesSingle, (short) (literalCoderInit));
-        Arrays.fill(rangesGrouped, (short) (literalCoderInit * 16));
-        Arrays.fill(rangesTotal, (short) (literalCoderInit * 256));
-        recentCost = 8 << CostScale + 14;
+        literalContextEpochs = new int[1 << literalCoderContextMaskSize];
         // Adaptive probability map init
         apmLow = new short[16 * 256];
-        Arrays.fill(apmLow, (short) 0x4000);
-        if (onlyLowLzp) {
-            apmHigh = null;
-        } else {
-            apmHigh = new short[16 * 256];
-            Arrays.fill(apmHigh, (short) 0x4000);
-        }
+        apmHigh = onlyLowLzp ? null : new short[16 * 256];
         // Contexts and hashes init
-        lastLiteralCoderContext = 0;
-        context = 0;
-        hashLow = 0;
-        hashHigh = 0;
         for (int i = 0; i < 256; i++) {
             int hash = -2128831035;
             hash *= 16777619;
@@ -135,6 +234,64 @@ abstract class Common {
             hash *= 16777619;
             precomputedHashes[i] = hash;
         }
+        resetModel();
+    }
+
+    /**
+     * Brings the model, except LZP tables, to its initial state. Literal
+     * coder contexts are only marked for initialization on first use.
+     */
+    private void resetModel() {
+        if (literalEpoch == Integer.MAX_VALUE) {
+            Arrays.fill(literalContextEpochs, 0);
+            literalEpoch = 1;
+        } else {
+            literalEpoch++;
+        }
+        recentCost = 8 << CostScale + 14;
+        literalCoderRescales = 0;
+        symbolsToStoredBlock = StoredBlockProbeLength;
+        storedBlockProbeHits = 0;
+        storedBlockProbeInterval = StoredBlockProbeLength;
+        Arrays.fill(apmLow, (short) 0x4000);
+        if (!onlyLowLzp) {
+            Arrays.fill(apmHigh, (short) 0x4000);
+        }
+        historyLow = 0;
+        historyHigh = 0;
+        lastLiteralCoderContext = 0;
+        context = 0;
+        hashLow = 0;
+        hashHigh = 0;
+    }
+
+    /**
+     * Attaches new windows and resets the model, so the coder can process
+     * another stream without allocating its tables again.
+     */
+    void reset(final InputWindow input, final OutputWindow output) {
+        this.input = input;
+        this.output = output;
+        if (checksum != null) {
+            checksum.reset(0);
+        }
+        lzpLow.reset();
+        if (!onlyLowLzp) {
+            lzpHigh.reset();
+        }
+        resetModel();
+    }
+
+    /**
+     * Drops references to windows of the last processed stream.
+     */
+    void detach() {
+        input = null;
+        output = null;
+    }
+
+    Options getOptions() {
+        return options;
     }
     // <editor-fold defaultstate="collapsed" desc="Contexts and hashes">
     void updateContext(final int input) {
@@ -143,10 +300,45 @@ abstract class Common {
     }
 
     void computeLiteralCoderContext() {
+        computeLiteralCoderContext(context);
+    }
+
+    void computeLiteralCoderContext(final long context) {
         lastLiteralCoderContext = (int) (context & literalCoderContextMask);
+        if (literalContextEpochs[lastLiteralCoderContext] != literalEpoch) {
+            initLiteralCoderContext(lastLiteralCoderContext);
+        }
+    }
+
+    private void initLiteralCoderContext(final int literalCoderContext) {
+        Arrays.fill(rangesSingle, literalCoderContext << 8,
+                literalCoderContext + 1 << 8, literalCoderInit);
+        if (fenwickLiteralCoder) {
+            System.arraycopy(initialTree, 0, rangesTree,
+                    literalCoderContext << 8, 256);
+        } else {
+            Arrays.fill(rangesGrouped, literalCoderContext << 4,
+                    literalCoderContext + 1 << 4,
+                    (short) (literalCoderInit * 16));
+        }
+        rangesTotal[literalCoderContext] = (short) (literalCoderInit * 256);
+        literalContextEpochs[literalCoderContext] = literalEpoch;
     }
 
-    void computeHashesOnlyLowLzp() {        
+    long getContext() {
+        return context;
+    }
+
+    void computeHashesOnlyLowLzp() {
+        if (multiplicativeHash) {
+            hashLow = (context & lzpLowContextMask) * HashMultiplier
+                    >>> lzpLowHashShift;
+            return;
+        }
+        if (defaultHashingShape) {
+            hashLow = hashFourBytes(context) & lzpLowMask;
+            return;
+        }
         long localContext = context >>> 8;
         int hash = precomputedHashes[(int)(context & 0xFF)];
         int i = 1;
@@ -158,10 +350,34 @@ abstract class Common {
             }
             hash *= 16777619;
         }
-        hashLow = hash & lzpLowMask;
+        hashLow = (lzpLowMaskSize > 32 ? widenHash(hash, lzpLowContextLength)
+                : hash) & lzpLowMask;
     }
 
     void computeHashes() {
+        if (multiplicativeHash) {
+            final long localContext = context;
+            hashLow = (localContext & lzpLowContextMask) * HashMultiplier
+                    >>> lzpLowHashShift;
+            hashHigh = (localContext & lzpHighContextMask) * HashMultiplier
+                    >>> lzpHighHashShift;
+            return;
+        }
+        if (defaultHashingShape) {
+            final long localContext = context;
+            int hash = hashFourBytes(localContext);
+            hashLow = hash & lzpLowMask;
+            hash *= 16777619;
+            hash ^= (int) (localContext >>> 32) & 0xFF;
+            hash *= 16777619;
+            hash ^= (int) (localContext >>> 40) & 0xFF;
+            hash *= 16777619;
+            hash ^= (int) (localContext >>> 48) & 0xFF;
+            hash *= 16777619;
+            hash ^= (int) (localContext >>> 56);
+            hashHigh = hash & lzpHighMask;
+            return;
+        }
         long localContext = context >>> 8;
         int hash = precomputedHashes[(int)(context & 0xFF)];
         int i = 1;
@@ -173,13 +389,39 @@ abstract class Common {
             }
             hash *= 16777619;
         }
-        hashLow = hash & lzpLowMask;
+        hashLow = (lzpLowMaskSize > 32 ? widenHash(hash, lzpLowContextLength)
+                : hash) & lzpLowMask;
         while (i++ < lzpHighContextLength) {
             hash *= 16777619;
             hash ^= (int) (localContext & 0xFF);
             localContext >>>= 8;
         }
-        hashHigh = hash & lzpHighMask;
+        hashHigh = (lzpHighMaskSize > 32
+                ? widenHash(hash, lzpHighContextLength) : hash) & lzpHighMask;
+    }
+
+    /**
+     * Unrolled hashing loop for context length of four bytes.
+     */
+    private int hashFourBytes(final long localContext) {
+        int hash = precomputedHashes[(int) (localContext & 0xFF)];
+        hash ^= (int) (localContext >>> 8) & 0xFF;
+        hash *= 16777619;
+        hash ^= (int) (localContext >>> 16) & 0xFF;
+        hash *= 16777619;
+        hash ^= (int) (localContext >>> 24) & 0xFF;
+        return hash;
+    }
+
+    /**
+     * Hashes have 32 bits, so for tables with more than 2^32 records upper
+     * bits of the index are taken from a 64-bit hash of the context.
+     */
+    private long widenHash(final int hash, final int contextLength) {
+        final long contextBits = contextLength == 8 ? context
+                : context & ((1L << contextLength * 8) - 1);
+        return (hash & 0xFFFFFFFFL)
+                | (contextBits * HashMultiplier) >>> 32 << 32;
     }
 
     int getLastLiteralCoderContext() {
@@ -193,36 +435,63 @@ abstract class Common {
     }// </editor-fold>
     // <editor-fold defaultstate="collapsed" desc="Lempel-Ziv Predictive stuff">
 
-    int getLzpStateLow() {
-        return (lzpLow[hashLow] >> 8) & 0xff;
+    /**
+     * Computes hashes of the given future context and loads LZP records
+     * pointed to by them, so they are in cache when the symbol following that
+     * context gets coded. Hashes are left in place of the current ones.
+     */
+    void computeFutureHashes(final long futureContext) {
+        final long currentContext = context;
+        context = futureContext;
+        if (onlyLowLzp) {
+            computeHashesOnlyLowLzp();
+            touchedRecords ^= lzpLow.get(hashLow);
+        } else {
+            computeHashes();
+            touchedRecords ^= lzpLow.get(hashLow) ^ lzpHigh.get(hashHigh);
+        }
+        context = currentContext;
+    }
+
+    long getHashLow() {
+        return hashLow;
+    }
+
+    long getHashHigh() {
+        return hashHigh;
     }
 
-    int getLzpStateHigh() {
-        return (lzpHigh[hashHigh] >> 8) & 0xff;
+    void setHashes(final long hashLow, final long hashHigh) {
+        this.hashLow = hashLow;
+        this.hashHigh = hashHigh;
     }
 
-    int getLzpPredictedSymbolLow() {
-        return lzpLow[hashLow] & 0xff;
+    /**
+     * @return record of the low LZP model holding quantized state in higher
+     * byte and predicted symbol in lower byte
+     */
+    short getLzpRecordLow() {
+        return lzpLow.get(hashLow);
     }
 
-    int getLzpPredictedSymbolHigh() {
-        return lzpHigh[hashHigh] & 0xff;
+    short getLzpRecordHigh() {
+        return lzpHigh.get(hashHigh);
     }
 
     void updateLzpStateLow(final int lzpStateLow, final int input,
             final boolean match) {
-        lzpLow[hashLow] = (short) ((getNextState(lzpStateLow, match) << 8)
-                + input);
+        lzpLow.set(hashLow, (short) ((getNextState(lzpStateLow, match) << 8)
+                + input));
     }
 
     void updateLzpStateHigh(final int lzpStateHigh, final int input,
             final boolean match) {
-        lzpHigh[hashHigh] = (short) ((getNextState(lzpStateHigh, match) << 8)
-                + input);
+        lzpHigh.set(hashHigh, (short) ((getNextState(lzpStateHigh, match) << 8)
+                + input));
     }// </editor-fold>
     // <editor-fold defaultstate="collapsed" desc="Adaptive prob. map stuff">
-    private int historyLow = 0;
-    private int historyHigh = 0;
+    private int historyLow;
+    private int historyHigh;
     private final int historyLowMask = 15;
     private final int historyHighMask = 15;
 
@@ -263,28 +532,97 @@ abstract class Common {
     }// </editor-fold>  
     // <editor-fold defaultstate="collapsed" desc="Literal coder stuff">
 
-    private void rescaleLiteralCoder() {
-        for (int indexCurrent = getLastLiteralCoderContext() << 8; indexCurrent
-                < (getLastLiteralCoderContext() + 1) << 8; indexCurrent++) {
-            rangesSingle[indexCurrent] -= rangesSingle[indexCurrent] >> 1;
-        }
-        short totalFrequency = 0;
-        for (int groupCurrent = getLastLiteralCoderContext() << 4; groupCurrent
-                < (getLastLiteralCoderContext() + 1) << 4; groupCurrent++) {
-            short groupFrequency = 0;
-            for (int indexCurrent = groupCurrent << 4; indexCurrent
-                    < (groupCurrent + 1) << 4; indexCurrent++) {
-                groupFrequency += rangesSingle[indexCurrent];
-            }
-            rangesGrouped[groupCurrent] = groupFrequency;
+    /**
+     * Halves frequencies of the current context. Halving is a simple loop
+     * which the JIT compiler vectorizes, while group sums are added in a
+     * tree to avoid a long chain of dependent additions.
+     */
+    void rescaleLiteralCoder() {
+        literalCoderRescales++;
+        final int literalCoderContext = getLastLiteralCoderContext();
+        final short[] singles = rangesSingle;
+        final int base = literalCoderContext << 8;
+        for (int index = base; index < base + 256; index++) {
+            singles[index] -= singles[index] >> 1;
+        }
+        if (fenwickLiteralCoder) {
+            rebuildLiteralTree(literalCoderContext);
+            return;
+        }
+        final short[] groups = rangesGrouped;
+        int totalFrequency = 0;
+        for (int group = 0; group < 16; group++) {
+            final int first = base + (group << 4);
+            final int groupFrequency = ((singles[first]
+                    + singles[first + 1]) + (singles[first + 2]
+                    + singles[first + 3])) + ((singles[first + 4]
+                    + singles[first + 5]) + (singles[first + 6]
+                    + singles[first + 7])) + ((singles[first + 8]
+                    + singles[first + 9]) + (singles[first + 10]
+                    + singles[first + 11])) + ((singles[first + 12]
+                    + singles[first + 13]) + (singles[first + 14]
+                    + singles[first + 15]));
+            groups[(literalCoderContext << 4) + group] =
+                    (short) groupFrequency;
             totalFrequency += groupFrequency;
         }
-        rangesTotal[getLastLiteralCoderContext()] = totalFrequency;
+        rangesTotal[literalCoderContext] = (short) totalFrequency;
+    }
+
+    /**
+     * Returns the number of literal coder rescales since the start of the
+     * current stream.
+     */
+    public long getLiteralCoderRescales() {
+        return literalCoderRescales;
+    }
+
+    /**
+     * Computes Fenwick tree and total frequency of a context from
+     * frequencies of single symbols.
+     */
+    private void rebuildLiteralTree(final int literalCoderContext) {
+        final int base = literalCoderContext << 8;
+        System.arraycopy(rangesSingle, base, rangesTree, base, 256);
+        for (int node = 1; node < 256; node++) {
+            final int parent = node + (node & -node);
+            rangesTree[base + parent - 1] += rangesTree[base + node - 1];
+        }
+        rangesTotal[literalCoderContext] = rangesTree[base + 255];
+    }
+
+    /**
+     * Adds delta to the frequency of symbol given by index in the Fenwick
+     * tree of its context.
+     */
+    void updateLiteralTree(final int index, final int delta) {
+        final int base = index & ~0xff;
+        for (int node = (index & 0xff) + 1; node <= 256;
+                node += node & -node) {
+            rangesTree[base + node - 1] += delta;
+        }
+    }
+
+    /**
+     * Sums frequencies of symbols preceding the one given by index in its
+     * context, using the Fenwick tree.
+     */
+    int getLiteralTreePrefix(final int index) {
+        final int base = index & ~0xff;
+        int sum = 0;
+        for (int node = index & 0xff; node > 0; node &= node - 1) {
+            sum += rangesTree[base + node - 1];
+        }
+        return sum;
     }
 
     void updateLiteralCoder(final int index) {
         rangesSingle[index] += literalCoderStep;
-        rangesGrouped[index >> 4] += literalCoderStep;
+        if (fenwickLiteralCoder) {
+            updateLiteralTree(index, literalCoderStep);
+        } else {
+            rangesGrouped[index >> 4] += literalCoderStep;
+        }
         rangesTotal[getLastLiteralCoderContext()] += literalCoderStep;
         if (rangesTotal[getLastLiteralCoderContext()] > literalCoderLimit) {
             rescaleLiteralCoder();
@@ -300,5 +638,451 @@ abstract class Common {
         recentCost += Lg2.nLog2(totalFrequency);
         recentCost -= Lg2.nLog2(symbolFrequency);
     }
+
+    /**
+     * Tells whether a stored block starts at the current symbol. Decisions
+     * are made only while recent literals don't compress, after every
+     * storedBlockProbeInterval such symbols, so the model gets a chance to
+     * notice when data becomes compressible again. Probes in which the LZP
+     * model predicted more than a few symbols, like repeats of earlier data,
+     * don't lead to stored blocks. Decoder makes the same decisions, so only
+     * the encoder's final word is coded as a flag. Has to be called exactly
+     * once before every symbol when stored blocks are enabled.
+     */
+    boolean storedBlockDue() {
+        if (!useFixedProbabilities()) {
+            if (storedBlockProbeInterval != StoredBlockProbeLength) {
+                storedBlockProbeInterval = StoredBlockProbeLength;
+                symbolsToStoredBlock = Math.min(symbolsToStoredBlock,
+                        StoredBlockProbeLength);
+            }
+            return false;
+        }
+        storedBlockProbeHits += ~(onlyLowLzp ? historyLow
+                : historyLow & historyHigh) & 1;
+        if (--symbolsToStoredBlock > 0) {
+            return false;
+        }
+        final boolean due = storedBlockProbeHits * StoredBlockProbeLength
+                <= storedBlockProbeInterval * StoredBlockMaxProbeHits;
+        symbolsToStoredBlock = storedBlockProbeInterval;
+        storedBlockProbeHits = 0;
+        return due;
+    }
+
+    /**
+     * Called after the last block of a run of stored blocks, or instead of
+     * the run if the encoder didn't start it. Decisions get less frequent,
+     * so data that stays barely compressible doesn't pay for them over and
+     * over.
+     */
+    void endStoredBlocks() {
+        storedBlockProbeInterval = Math.min(storedBlockProbeInterval * 2,
+                StoredBlockMaxProbeInterval);
+        symbolsToStoredBlock = storedBlockProbeInterval;
+        storedBlockProbeHits = 0;
+    }
+
+    /**
+     * Estimates the cost of coding symbols of the range with the current
+     * model, in bits scaled by 2^14, without updating the model. Symbols
+     * are costed the way the estimating encoder does it, so repeats within
+     * the range aren't noticed. Records are loaded a batch ahead.
+     */
+    long estimateCost(final ByteBuffer buffer, final int from, final int to) {
+        final long currentContext = context;
+        long cost = 0;
+        for (int i = from; i < to; i++) {
+            if ((i - from) % StoredBlockUpdateBatch == 0) {
+                long futureContext = context;
+                for (int j = i; j < Math.min(i + StoredBlockUpdateBatch, to);
+                        j++) {
+                    computeFutureHashes(futureContext);
+                    futureContext = (futureContext << 8)
+                            | (buffer.get(j) & 0xff);
+                }
+            }
+            final int symbol = buffer.get(i) & 0xff;
+            final short record;
+            final int frequency;
+            if (onlyLowLzp) {
+                computeHashesOnlyLowLzp();
+                record = lzpLow.get(hashLow);
+                frequency = getApmLow((record >> 8) & 0xff);
+            } else {
+                computeHashes();
+                final short recordLow = lzpLow.get(hashLow);
+                final short recordHigh = lzpHigh.get(hashHigh);
+                final int frequencyLow = getApmLow((recordLow >> 8) & 0xff);
+                final int frequencyHigh = getApmHigh((recordHigh >> 8) & 0xff);
+                record = frequencyLow >= frequencyHigh ? recordLow : recordHigh;
+                frequency = Math.max(frequencyLow, frequencyHigh);
+            }
+            final int predictedSymbol = record & 0xff;
+            if (predictedSymbol == symbol) {
+                cost += (15 << 14) - Lg2.nLog2(frequency);
+            } else {
+                cost += (15 << 14) - Lg2.nLog2(0x8000 - frequency);
+                final int literalContext = (int) (context
+                        & literalCoderContextMask);
+                if (useFixedProbabilities() || literalContextEpochs[
+                        literalContext] != literalEpoch) {
+                    cost += FixedSymbolCost;
+                } else {
+                    cost += Lg2.nLog2(rangesTotal[literalContext]
+                            - rangesSingle[(literalContext << 8)
+                            + predictedSymbol]) - Lg2.nLog2(rangesSingle[
+                            (literalContext << 8) + symbol]);
+                }
+            }
+            updateContext(symbol);
+        }
+        context = currentContext;
+        return cost;
+    }
+
+    /**
+     * Updates LZP models and the context with bytes of a stored block.
+     * Symbols not predicted by any LZP model also update the literal coder
+     * and the recent cost, the way coding them would, so the model learns
+     * stored data and returns from fixed probabilities on repeats of it.
+     * Other parts of the model are skipped. Records and literal frequencies
+     * are loaded a batch ahead, the same way the lookahead engine does it,
+     * so their cache misses overlap.
+     */
+    void updateLzp(final ByteBuffer buffer, final int from, final int to) {
+        for (int batchStart = from; batchStart < to;
+                batchStart += StoredBlockUpdateBatch) {
+            final int batchEnd = Math.min(batchStart + StoredBlockUpdateBatch,
+                    to);
+            long futureContext = context;
+            for (int i = batchStart; i < batchEnd; i++) {
+                computeFutureHashes(futureContext);
+                final int index = ((int) (futureContext
+                        & literalCoderContextMask) << 8)
+                        + (buffer.get(i) & 0xff);
+                touchedRecords ^= rangesSingle[index]
+                        ^ rangesTotal[index >> 8] ^ (fenwickLiteralCoder
+                        ? rangesTree[index] : rangesGrouped[index >> 4]);
+                futureContext = (futureContext << 8) | (buffer.get(i) & 0xff);
+            }
+            for (int i = batchStart; i < batchEnd; i++) {
+                final int symbol = buffer.get(i) & 0xff;
+                boolean predicted = false;
+                if (onlyLowLzp) {
+                    computeHashesOnlyLowLzp();
+                } else {
+                    computeHashes();
+                    final short recordHigh = lzpHigh.get(hashHigh);
+                    predicted = (recordHigh & 0xff) == symbol;
+                    updateLzpStateHigh((recordHigh >> 8) & 0xff, symbol,
+                            predicted);
+                }
+                final short recordLow = lzpLow.get(hashLow);
+                final boolean matchLow = (recordLow & 0xff) == symbol;
+                updateLzpStateLow((recordLow >> 8) & 0xff, symbol, matchLow);
+                if (!predicted && !matchLow) {
+                    computeLiteralCoderContext();
+                    final int index = (getLastLiteralCoderContext() << 8)
+                            + symbol;
+                    updateRecentCost(rangesSingle[index],
+                            rangesTotal[getLastLiteralCoderContext()]);
+                    updateLiteralCoder(index);
+                }
+                updateContext(symbol);
+            }
+        }
+    }
     // </editor-fold>  
+    // <editor-fold defaultstate="collapsed" desc="Block based processing">
+
+    /**
+     * Stores records of the low LZP model seen by every symbol of the chunk
+     * and updates the model. Leaves context at the end of the chunk.
+     */
+    void lzpLowPass(final Chunk chunk) {
+        final byte[] symbols = chunk.symbols;
+        final short[] records = chunk.lzpLowRecords;
+        context = chunk.startContext;
+        for (int i = 0; i < chunk.length; i++) {
+            computeHashesOnlyLowLzp();
+            final short record = lzpLow.get(hashLow);
+            records[i] = record;
+            final int symbol = symbols[i] & 0xff;
+            updateLzpStateLow((record >> 8) & 0xff, symbol,
+                    (record & 0xff) == symbol);
+            updateContext(symbol);
+        }
+    }
+
+    /**
+     * Stores records of the high LZP model seen by every symbol of the
+     * chunk and updates the model. Leaves context at the end of the chunk.
+     */
+    void lzpHighPass(final Chunk chunk) {
+        final byte[] symbols = chunk.symbols;
+        final short[] records = chunk.lzpHighRecords;
+        context = chunk.startContext;
+        for (int i = 0; i < chunk.length; i++) {
+            computeHashes();
+            final short record = lzpHigh.get(hashHigh);
+            records[i] = record;
+            final int symbol = symbols[i] & 0xff;
+            updateLzpStateHigh((record >> 8) & 0xff, symbol,
+                    (record & 0xff) == symbol);
+            updateContext(symbol);
+        }
+    }
+
+    /**
+     * Selects the LZP model for every symbol of the chunk, stores its
+     * probability and predicted symbol and updates adaptive probability
+     * maps in the same way as symbol by symbol processing does.
+     */
+    void apmPass(final Chunk chunk) {
+        final byte[] symbols = chunk.symbols;
+        final short[] lowRecords = chunk.lzpLowRecords;
+        final short[] highRecords = chunk.lzpHighRecords;
+        final short[] probabilities = chunk.probabilities;
+        final byte[] predictedSymbols = chunk.predictedSymbols;
+        for (int i = 0; i < chunk.length; i++) {
+            final int symbol = symbols[i] & 0xff;
+            final int lzpStateLow = (lowRecords[i] >> 8) & 0xff;
+            final int predictedSymbolLow = lowRecords[i] & 0xff;
+            final int modelLowFrequency = getApmLow(lzpStateLow);
+            final boolean matchLow = symbol == predictedSymbolLow;
+            if (onlyLowLzp) {
+                updateApmLow(lzpStateLow, matchLow);
+                probabilities[i] = (short) modelLowFrequency;
+                predictedSymbols[i] = (byte) predictedSymbolLow;
+                continue;
+            }
+            final int lzpStateHigh = (highRecords[i] >> 8) & 0xff;
+            final int predictedSymbolHigh = highRecords[i] & 0xff;
+            final int modelHighFrequency = getApmHigh(lzpStateHigh);
+            final boolean matchHigh = symbol == predictedSymbolHigh;
+            if (modelLowFrequency >= modelHighFrequency) {
+                updateApmHistoryHigh(matchHigh);
+                updateApmLow(lzpStateLow, matchLow);
+                probabilities[i] = (short) modelLowFrequency;
+                predictedSymbols[i] = (byte) predictedSymbolLow;
+            } else {
+                updateApmHistoryLow(matchLow);
+                updateApmHigh(lzpStateHigh, matchHigh);
+                probabilities[i] = (short) modelHighFrequency;
+                predictedSymbols[i] = (byte) predictedSymbolHigh;
+            }
+        }
+    }
+    // </editor-fold>
+    // <editor-fold defaultstate="collapsed" desc="Snapshots">
+
+    /**
+     * Snapshot layout (numbers big endian unless stated otherwise):
+     * <pre>
+     * snapshot header (8), packed options (8), coder kind (4),
+     * coder state length (4), coder state
+     * recent cost, low history, high history, literal coder context (4 each)
+     * context, low hash, high hash (8 each)
+     * low and high adaptive probability maps (2 per record)
+     * flag of every literal coder context (1 each), then for every flagged
+     *     context its single, grouped and total frequencies (2 per record)
+     * low and high LZP tables as described in {@link ShortTable}
+     * </pre>
+     * Maps and tables of the high model are omitted if only low LZP model is
+     * used.
+     */
+    static final long SnapshotHeaderValue = 0x545a4c50534e4150l;
+
+    /**
+     * Writes the snapshot of the whole model preceded by the state of the
+     * coder.
+     */
+    void saveSnapshot(final WritableByteChannel channel, final int coderKind,
+            final ByteBuffer coderState) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(24);
+        header.putLong(SnapshotHeaderValue).putLong(options.toPacked());
+        header.putInt(coderKind).putInt(coderState.remaining()).flip();
+        BlockCoder.writeFully(channel, header);
+        BlockCoder.writeFully(channel, coderState);
+        final int apmRecords = apmLow.length * (onlyLowLzp ? 1 : 2);
+        int usedContexts = 0;
+        for (final int epoch : literalContextEpochs) {
+            usedContexts += epoch == literalEpoch ? 1 : 0;
+        }
+        final ByteBuffer model = ByteBuffer.allocate(40 + apmRecords * 2
+                + rangesTotal.length + usedContexts * (256 + 16 + 1) * 2);
+        model.putInt(recentCost).putInt(historyLow).putInt(historyHigh);
+        model.putInt(lastLiteralCoderContext);
+        model.putLong(context).putLong(hashLow).putLong(hashHigh);
+        model.asShortBuffer().put(apmLow);
+        model.position(model.position() + apmLow.length * 2);
+        if (!onlyLowLzp) {
+            model.asShortBuffer().put(apmHigh);
+            model.position(model.position() + apmHigh.length * 2);
+        }
+        for (final int epoch : literalContextEpochs) {
+            model.put((byte) (epoch == literalEpoch ? 1 : 0));
+        }
+        final short[] groups = new short[16];
+        for (int i = 0; i < rangesTotal.length; i++) {
+            if (literalContextEpochs[i] == literalEpoch) {
+                if (fenwickLiteralCoder) {
+                    for (int group = 0; group < 16; group++) {
+                        short groupFrequency = 0;
+                        for (int symbol = 0; symbol < 16; symbol++) {
+                            groupFrequency += rangesSingle[(i << 8)
+                                    + (group << 4) + symbol];
+                        }
+                        groups[group] = groupFrequency;
+                    }
+                } else {
+                    System.arraycopy(rangesGrouped, i << 4, groups, 0, 16);
+                }
+                model.asShortBuffer().put(rangesSingle, i << 8, 256)
+                        .put(groups).put(rangesTotal[i]);
+                model.position(model.position() + (256 + 16 + 1) * 2);
+            }
+        }
+        model.flip();
+        BlockCoder.writeFully(channel, model);
+        lzpLow.save(channel);
+        if (!onlyLowLzp) {
+            lzpHigh.save(channel);
+        }
+    }
+
+    /**
+     * Restores the model from a snapshot written by saveSnapshot.
+     *
+     * @return state of the coder, ready for reading
+     */
+    ByteBuffer restoreSnapshot(final ReadableByteChannel channel,
+            final int coderKind) throws IOException {
+        final ByteBuffer coderState = restoreModelState(channel, coderKind);
+        lzpLow.restore(channel);
+        if (!onlyLowLzp) {
+            lzpHigh.restore(channel);
+        }
+        return coderState;
+    }
+
+    /**
+     * Restores all of the model but LZP tables, which follow in the
+     * snapshot.
+     */
+    private ByteBuffer restoreModelState(final ReadableByteChannel channel,
+            final int coderKind) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(24);
+        BlockCoder.readFully(channel, header);
+        header.flip();
+        if (header.getLong() != SnapshotHeaderValue) {
+            throw new IOException("Wrong snapshot header.");
+        }
+        if (!sameModel(Options.fromPacked(header.getLong()))) {
+            throw new IOException("Snapshot was made with different "
+                    + "options.");
+        }
+        if (header.getInt() != coderKind) {
+            throw new IOException("Snapshot was made by different coder.");
+        }
+        final int coderStateLength = header.getInt();
+        if (coderStateLength < 0
+                || coderStateLength > 1024 + StoredBlockMaxLength) {
+            throw new IOException("Invalid snapshot.");
+        }
+        final ByteBuffer coderState = ByteBuffer.allocate(coderStateLength);
+        BlockCoder.readFully(channel, coderState);
+        coderState.flip();
+        resetModel();
+        final int apmRecords = apmLow.length * (onlyLowLzp ? 1 : 2);
+        final ByteBuffer model = ByteBuffer.allocate(40 + apmRecords * 2
+                + rangesTotal.length);
+        BlockCoder.readFully(channel, model);
+        model.flip();
+        recentCost = model.getInt();
+        historyLow = model.getInt();
+        historyHigh = model.getInt();
+        lastLiteralCoderContext = model.getInt();
+        context = model.getLong();
+        hashLow = model.getLong();
+        hashHigh = model.getLong();
+        model.asShortBuffer().get(apmLow);
+        model.position(model.position() + apmLow.length * 2);
+        if (!onlyLowLzp) {
+            model.asShortBuffer().get(apmHigh);
+            model.position(model.position() + apmHigh.length * 2);
+        }
+        if ((lastLiteralCoderContext & ~literalCoderContextMask) != 0) {
+            throw new IOException("Invalid snapshot.");
+        }
+        final ByteBuffer ranges = ByteBuffer.allocate((256 + 16 + 1) * 2);
+        final byte[] flags = new byte[rangesTotal.length];
+        model.get(flags);
+        for (int i = 0; i < flags.length; i++) {
+            final byte flag = flags[i];
+            if (flag == 0) {
+                continue;
+            } else if (flag == 1) {
+                ranges.clear();
+                BlockCoder.readFully(channel, ranges);
+                ranges.flip();
+                ranges.asShortBuffer().get(rangesSingle, i << 8, 256);
+                if (fenwickLiteralCoder) {
+                    rebuildLiteralTree(i);
+                } else {
+                    ranges.position(256 * 2);
+                    ranges.asShortBuffer().get(rangesGrouped, i << 4, 16);
+                    rangesTotal[i] = ranges.getShort(ranges.limit() - 2);
+                }
+                literalContextEpochs[i] = literalEpoch;
+            } else {
+                throw new IOException("Invalid snapshot.");
+            }
+        }
+        return coderState;
+    }
+
+    /**
+     * Checks if options describe the same model. Checksum and stored blocks
+     * flags don't affect the model, so they're ignored.
+     */
+    private boolean sameModel(final Options otherOptions) {
+        return otherOptions != null && options.withChecksum(false)
+                .withStoredBlocks(false).equals(otherOptions
+                .withChecksum(false).withStoredBlocks(false));
+    }
+
+    /**
+     * Replaces the model with the one trained in the dictionary. Lazy LZP
+     * tables are primed with templates shared through the dictionary, made
+     * by the first coder primed with it, instead of restoring their
+     * records every time.
+     */
+    void primeModel(final ModelDictionary dictionary) throws IOException {
+        if (!sameModel(dictionary.getOptions())) {
+            throw new IllegalArgumentException(
+                    "Dictionary was trained with different options.");
+        }
+        final ReadableByteChannel channel = dictionary.openSnapshot();
+        if (!(lzpLow instanceof LazyHeapShortTable)) {
+            restoreSnapshot(channel, ModelDictionary.SnapshotCoderKind);
+            return;
+        }
+        final LazyHeapShortTable.Template[] templates =
+                dictionary.getTemplates();
+        if (templates == null) {
+            restoreSnapshot(channel, ModelDictionary.SnapshotCoderKind);
+            dictionary.setTemplates(new LazyHeapShortTable.Template[]{
+                ((LazyHeapShortTable) lzpLow).freeze(), onlyLowLzp ? null
+                : ((LazyHeapShortTable) lzpHigh).freeze()});
+        } else {
+            restoreModelState(channel, ModelDictionary.SnapshotCoderKind);
+            ((LazyHeapShortTable) lzpLow).prime(templates[0]);
+            if (!onlyLowLzp) {
+                ((LazyHeapShortTable) lzpHigh).prime(templates[1]);
+            }
+        }
+    }
+    // </editor-fold>
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+/**
+ * CRC32C (Castagnoli polynomial) computed with slicing by 8 bytes.
+ * Standard library has it only since Java 9.
+ *
+ * @author Piotr Tarsa
+ */
+final class Crc32c {
+
+    private static final int Polynomial = 0x82F63B78;
+    /**
+     * Eight tables of 256 entries. Entry of table k is the CRC of a byte
+     * followed by k zero bytes.
+     */
+    private static final int[] Table = createTable();
+    private int crc = ~0;
+
+    private static int[] createTable() {
+        final int[] table = new int[8 * 256];
+        for (int i = 0; i < 256; i++) {
+            int value = i;
+            for (int bit = 0; bit < 8; bit++) {
+                value = (value >>> 1) ^ (Polynomial & -(value & 1));
+            }
+            table[i] = value;
+        }
+        for (int slice = 1; slice < 8; slice++) {
+            for (int i = 0; i < 256; i++) {
+                final int previous = table[(slice - 1) * 256 + i];
+                table[slice * 256 + i] = (previous >>> 8)
+                        ^ table[previous & 0xff];
+            }
+        }
+        return table;
+    }
+
+    void update(final byte[] bytes, int offset, int length) {
+        final int[] table = Table;
+        int value = crc;
+        while (length >= 8) {
+            final int low = value ^ ((bytes[offset] & 0xff)
+                    | (bytes[offset + 1] & 0xff) << 8
+                    | (bytes[offset + 2] & 0xff) << 16
+                    | bytes[offset + 3] << 24);
+            final int high = (bytes[offset + 4] & 0xff)
+                    | (bytes[offset + 5] & 0xff) << 8
+                    | (bytes[offset + 6] & 0xff) << 16
+                    | bytes[offset + 7] << 24;
+            value = table[7 * 256 + (low & 0xff)]
+                    ^ table[6 * 256 + (low >>> 8 & 0xff)]
+                    ^ table[5 * 256 + (low >>> 16 & 0xff)]
+                    ^ table[4 * 256 + (low >>> 24)]
+                    ^ table[3 * 256 + (high & 0xff)]
+                    ^ table[2 * 256 + (high >>> 8 & 0xff)]
+                    ^ table[256 + (high >>> 16 & 0xff)]
+                    ^ table[high >>> 24];
+            offset += 8;
+            length -= 8;
+        }
+        while (length-- > 0) {
+            value = (value >>> 8) ^ table[(value ^ bytes[offset++]) & 0xff];
+        }
+        crc = value;
+    }
+
+    int getValue() {
+        return ~crc;
+    }
+
+    /**
+     * Sets the state as if data with given CRC was processed.
+     */
+    void reset(final int value) {
+        crc = ~value;
+    }
+}
@@ -34,6 +34,9 @@ import com.github.tarsa.tarsalzp.Options;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  *
@@ -41,28 +44,81 @@ import java.io.OutputStream;
  */
 public final class Decoder extends Common {
 
+    private static final int SnapshotCoderKind = 2;
     private int rcBuffer;
     private int rcRange;
     private boolean started;
-    private int nextHighBit = 0;
+    private int nextHighBit;
+    /**
+     * Position in the output window from which bytes weren't checksummed
+     * yet.
+     */
+    private int checksumStart;
+    /**
+     * Number of bytes of the current stored block that weren't copied yet.
+     */
+    private int storedRemaining;
+    private boolean storingBlock;
+    /**
+     * Whether another stored block follows the current one directly.
+     */
+    private boolean storedChained;
 
     public Decoder(final InputStream inputStream,
             final OutputStream outputStream, final Options options) {
-        super(inputStream, outputStream, options);
+        this(inputStream, outputStream, options, Settings.Default);
+    }
+
+    public Decoder(final InputStream inputStream,
+            final OutputStream outputStream, final Options options,
+            final Settings settings) {
+        this(new StreamInputWindow(inputStream, InputWindow.DefaultSize, true),
+                new StreamOutputWindow(outputStream, OutputWindow.DefaultSize),
+                options, settings);
+    }
+
+    Decoder(final InputWindow input, final OutputWindow output,
+            final Options options, final Settings settings) {
+        super(input, output, options, settings);
+        started = false;
+        nextHighBit = 0;
+        storedRemaining = 0;
+        storingBlock = false;
+        storedChained = false;
+    }
+
+    /**
+     * Prepares the decoder for another stream. Model tables are reset
+     * instead of being allocated again.
+     */
+    public void reset(final InputStream inputStream,
+            final OutputStream outputStream) {
+        reset(new StreamInputWindow(inputStream, InputWindow.DefaultSize, true),
+                new StreamOutputWindow(outputStream, OutputWindow.DefaultSize));
+    }
+
+    @Override
+    void reset(final InputWindow input, final OutputWindow output) {
+        super.reset(input, output);
         started = false;
+        nextHighBit = 0;
+        storedRemaining = 0;
+        storingBlock = false;
+        storedChained = false;
     }
 
     private int inputByte() throws IOException {
-        final int inputByte = inputStream.read();
-        if (inputByte == -1) {
+        if (!input.buffer.hasRemaining() && !input.refill()) {
             throw new IOException("Unexpected end of file.");
         }
+        final int inputByte = input.buffer.get() & 0xff;
         final int currentByte = (inputByte >> 1) + (nextHighBit << 7);
         nextHighBit = inputByte & 1;
         return currentByte;
     }
 
     private void init() throws IOException {
+        nextHighBit = 0;
         rcBuffer = 0;
         for (int i = 0; i < 4; i++) {
             rcBuffer = (rcBuffer << 8) + inputByte();
@@ -105,8 +161,9 @@ public final class Decoder extends Common {
 
     private int decodeSingleOnlyLowLzp() throws IOException {
         computeHashesOnlyLowLzp();
-        final int lzpStateLow = getLzpStateLow();
-        final int predictedSymbolLow = getLzpPredictedSymbolLow();
+        final short lzpRecordLow = getLzpRecordLow();
+        final int lzpStateLow = (lzpRecordLow >> 8) & 0xff;
+        final int predictedSymbolLow = lzpRecordLow & 0xff;
         final int modelLowFrequency = getApmLow(lzpStateLow);
         final boolean matchLow = decodeFlag(modelLowFrequency);
         updateApmLow(lzpStateLow, matchLow);
@@ -119,11 +176,13 @@ public final class Decoder extends Common {
 
     private int decodeSingle() throws IOException {
         computeHashes();
-        final int lzpStateLow = getLzpStateLow();
-        final int predictedSymbolLow = getLzpPredictedSymbolLow();
+        final short lzpRecordLow = getLzpRecordLow();
+        final int lzpStateLow = (lzpRecordLow >> 8) & 0xff;
+        final int predictedSymbolLow = lzpRecordLow & 0xff;
         final int modelLowFrequency = getApmLow(lzpStateLow);
-        final int lzpStateHigh = getLzpStateHigh();
-        final int predictedSymbolHigh = getLzpPredictedSymbolHigh();
+        final short lzpRecordHigh = getLzpRecordHigh();
+        final int lzpStateHigh = (lzpRecordHigh >> 8) & 0xff;
+        final int predictedSymbolHigh = lzpRecordHigh & 0xff;
         final int modelHighFrequency = getApmHigh(lzpStateHigh);
         int nextSymbol;
         if (modelLowFrequency >= modelHighFrequency) {
@@ -149,36 +208,54 @@ public final class Decoder extends Common {
         return nextSymbol;
     }
 
-    private int decodeSymbol(final int mispredictedSymbol) throws IOException {
+    int decodeSymbol(final int mispredictedSymbol) throws IOException {
         normalize();
         computeLiteralCoderContext();
         int index;
         int nextSymbol;
         if (!useFixedProbabilities()) {
-            final short mispredictedSymbolFrequency = rangesSingle[
-                    (getLastLiteralCoderContext() << 8) + mispredictedSymbol];
+            final int mispredictedIndex = (getLastLiteralCoderContext() << 8)
+                    + mispredictedSymbol;
+            final short mispredictedSymbolFrequency =
+                    rangesSingle[mispredictedIndex];
             rcRange /= rangesTotal[getLastLiteralCoderContext()]
                     - mispredictedSymbolFrequency;
-            rangesSingle[(getLastLiteralCoderContext() << 8)
-                    + mispredictedSymbol] = 0;
-            rangesGrouped[((getLastLiteralCoderContext() << 8)
-                    + mispredictedSymbol) >> 4] -= mispredictedSymbolFrequency;
             int rcHelper = rcBuffer / rcRange;
             final int cumulativeFrequency = rcHelper;
-            for (index = getLastLiteralCoderContext() << 4; rcHelper
-                    >= rangesGrouped[index]; index++) {
-                rcHelper -= rangesGrouped[index];
-            }
-            for (index <<= 4; rcHelper >= rangesSingle[index]; index++) {
-                rcHelper -= rangesSingle[index];
+            if (fenwickLiteralCoder) {
+                final int base = getLastLiteralCoderContext() << 8;
+                int symbol = 0;
+                for (int step = 128; step > 0; step >>= 1) {
+                    // node covers symbols from symbol to symbol + step - 1
+                    int nodeFrequency = rangesTree[base + symbol + step - 1];
+                    if (mispredictedSymbol >= symbol
+                            && mispredictedSymbol < symbol + step) {
+                        nodeFrequency -= mispredictedSymbolFrequency;
+                    }
+                    if (rcHelper >= nodeFrequency) {
+                        rcHelper -= nodeFrequency;
+                        symbol += step;
+                    }
+                }
+                index = base + symbol;
+            } else {
+                rangesSingle[mispredictedIndex] = 0;
+                rangesGrouped[mispredictedIndex >> 4] -=
+                        mispredictedSymbolFrequency;
+                for (index = getLastLiteralCoderContext() << 4; rcHelper
+                        >= rangesGrouped[index]; index++) {
+                    rcHelper -= rangesGrouped[index];
+                }
+                for (index <<= 4; rcHelper >= rangesSingle[index]; index++) {
+                    rcHelper -= rangesSingle[index];
+                }
+                rangesSingle[mispredictedIndex] = mispredictedSymbolFrequency;
+                rangesGrouped[mispredictedIndex >> 4] +=
+                        mispredictedSymbolFrequency;
             }
             rcBuffer -= (cumulativeFrequency - rcHelper) * rcRange;
             rcRange *= rangesSingle[index];
             nextSymbol = index & 0xff;
-            rangesSingle[(getLastLiteralCoderContext() << 8)
-                    + mispredictedSymbol] = mispredictedSymbolFrequency;
-            rangesGrouped[((getLastLiteralCoderContext() << 8)
-                    + mispredictedSymbol) >> 4] += mispredictedSymbolFrequency;
         } else {
             rcRange /= 255;
             final int rcHelper = rcBuffer / rcRange;
@@ -192,19 +269,266 @@ public final class Decoder extends Common {
         return nextSymbol;
     }
 
+    /**
+     * Reads a number stored outside of range coded data.
+     */
+    private int readRawInt() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            if (!input.buffer.hasRemaining() && !input.refill()) {
+                throw new IOException("Unexpected end of file.");
+            }
+            value = (value << 8) | (input.buffer.get() & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Decodes the flag coded after a positive decision about stored blocks.
+     */
+    private boolean storedBlockFollows() throws IOException {
+        if (decodeFlag(StoredBlockFlagProbability)) {
+            return true;
+        }
+        endStoredBlocks();
+        return false;
+    }
+
+    /**
+     * Starts a run of stored blocks following the range coded part, which
+     * has just ended, and copies as much of it as the limit allows.
+     *
+     * @return number of copied bytes
+     */
+    private int startStoredBlock(final long limit) throws IOException {
+        storingBlock = true;
+        storedChained = true;
+        storedRemaining = 0;
+        return copyStoredBlock(limit);
+    }
+
+    /**
+     * Copies bytes of the current run of stored blocks, at most limit of
+     * them. Range decoding is started again after the last block of the run.
+     *
+     * @return number of copied bytes
+     */
+    private int copyStoredBlock(final long limit) throws IOException {
+        int copied = 0;
+        while (true) {
+            if (storedRemaining == 0) {
+                if (!storedChained) {
+                    storingBlock = false;
+                    init();
+                    endStoredBlocks();
+                    return copied;
+                }
+                if (copied == limit) {
+                    return copied;
+                }
+                storedRemaining = readRawInt();
+                if (storedRemaining < 0
+                        || storedRemaining > StoredBlockMaxLength) {
+                    throw new IOException("Invalid stored block length.");
+                }
+                storedChained = storedRemaining == StoredBlockMaxLength;
+                continue;
+            }
+            if (copied == limit) {
+                return copied;
+            }
+            if (!input.buffer.hasRemaining() && !input.refill()) {
+                throw new IOException("Unexpected end of file.");
+            }
+            if (!output.buffer.hasRemaining()) {
+                flushOutput();
+            }
+            final ByteBuffer block = input.buffer;
+            final int from = block.position();
+            final int length = (int) Math.min(Math.min(storedRemaining,
+                    limit - copied), Math.min(block.remaining(),
+                    output.buffer.remaining()));
+            final int blockLimit = block.limit();
+            block.limit(from + length);
+            output.buffer.put(block);
+            block.limit(blockLimit);
+            updateLzp(block, from, from + length);
+            copied += length;
+            storedRemaining -= length;
+        }
+    }
+
+    /**
+     * Passes bytes put into the output window since the last call to the
+     * checksum.
+     */
+    private void updateChecksum() throws IOException {
+        if (checksum != null) {
+            checksum.update(output.buffer, checksumStart,
+                    output.buffer.position());
+        }
+        checksumStart = output.buffer.position();
+    }
+
+    private void flushOutput() throws IOException {
+        updateChecksum();
+        output.flush();
+        checksumStart = output.buffer.position();
+    }
+
+    /**
+     * Reads CRC32C stored after the end of stream, if options ask for it,
+     * and compares it with CRC32C of decoded data.
+     */
+    private void verifyChecksum() throws IOException {
+        if (checksum != null) {
+            updateChecksum();
+            if (readRawInt() != checksum.getValue()) {
+                throw new IOException("Checksum mismatch. Decoded data is "
+                        + "corrupted.");
+            }
+        }
+    }
+
     long decode(final long limit) throws IOException {
+        checksumStart = output.buffer.position();
         if (!started) {
             init();
         }
-        for (long processed = 0; processed < limit; processed++) {
+        final long copied = storingBlock ? copyStoredBlock(limit) : 0;
+        if (onlyLowLzp) {
+            return decodeOnlyLowLzp(copied, limit);
+        }
+        for (long processed = copied; processed < limit; processed++) {
             if (decodeSkewed()) {
-                final int symbol = onlyLowLzp ? decodeSingleOnlyLowLzp()
-                        : decodeSingle();
-                outputStream.write(symbol);
+                if (storedBlocks && storedBlockDue()
+                        && storedBlockFollows()) {
+                    processed += startStoredBlock(limit - processed) - 1;
+                    continue;
+                }
+                final int symbol = decodeSingle();
+                if (!output.buffer.hasRemaining()) {
+                    flushOutput();
+                }
+                output.buffer.put((byte) symbol);
             } else {
+                verifyChecksum();
+                input.finish();
+                flushOutput();
                 return processed;
             }
         }
+        flushOutput();
         return limit;
     }
+
+    /**
+     * Same as decode, but with the model shape checked once instead of for
+     * every symbol.
+     */
+    private long decodeOnlyLowLzp(final long copied, final long limit)
+            throws IOException {
+        for (long processed = copied; processed < limit; processed++) {
+            if (decodeSkewed()) {
+                if (storedBlocks && storedBlockDue()
+                        && storedBlockFollows()) {
+                    processed += startStoredBlock(limit - processed) - 1;
+                    continue;
+                }
+                final int symbol = decodeSingleOnlyLowLzp();
+                if (!output.buffer.hasRemaining()) {
+                    flushOutput();
+                }
+                output.buffer.put((byte) symbol);
+            } else {
+                verifyChecksum();
+                input.finish();
+                flushOutput();
+                return processed;
+            }
+        }
+        flushOutput();
+        return limit;
+    }
+
+    /**
+     * Starts coding from the model trained in the dictionary. Has to be
+     * called before decoding the stream, after creating or resetting the decoder.
+     */
+    public void prime(final ModelDictionary dictionary) throws IOException {
+        primeModel(dictionary);
+    }
+
+    /**
+     * Writes a snapshot of the model and range coder state. Input not
+     * consumed yet is returned to the input window and decoded bytes are
+     * flushed first. Decoding can be resumed by a decoder with the same
+     * options using {@link #restoreState}, given the input following the
+     * bytes consumed so far.
+     */
+    public void saveState(final WritableByteChannel channel)
+            throws IOException {
+        input.finish();
+        output.flush();
+        final ByteBuffer coderState = ByteBuffer.allocate(
+                coderStateLength());
+        coderState.putInt(rcBuffer).putInt(rcRange).putInt(nextHighBit);
+        coderState.put((byte) (started ? 1 : 0));
+        if (checksum != null) {
+            coderState.putInt(checksum.getValue());
+        }
+        if (storedBlocks) {
+            coderState.putInt(symbolsToStoredBlock)
+                    .putInt(storedBlockProbeHits)
+                    .putInt(storedBlockProbeInterval).putInt(storedRemaining);
+            coderState.put((byte) ((storingBlock ? 1 : 0)
+                    + (storedChained ? 2 : 0)));
+        }
+        coderState.flip();
+        saveSnapshot(channel, SnapshotCoderKind, coderState);
+    }
+
+    /**
+     * Replaces the model and range coder state with a snapshot written by
+     * {@link #saveState}.
+     */
+    public void restoreState(final ReadableByteChannel channel)
+            throws IOException {
+        final ByteBuffer coderState = restoreSnapshot(channel,
+                SnapshotCoderKind);
+        if (coderState.remaining() != coderStateLength()) {
+            throw new IOException("Invalid snapshot.");
+        }
+        rcBuffer = coderState.getInt();
+        rcRange = coderState.getInt();
+        nextHighBit = coderState.getInt();
+        started = coderState.get() != 0;
+        if (checksum != null) {
+            checksum.reset(coderState.getInt());
+        }
+        if (storedBlocks) {
+            symbolsToStoredBlock = coderState.getInt();
+            storedBlockProbeHits = coderState.getInt();
+            storedBlockProbeInterval = coderState.getInt();
+            storedRemaining = coderState.getInt();
+            final int flags = coderState.get();
+            storingBlock = (flags & 1) != 0;
+            storedChained = (flags & 2) != 0;
+            if (storedBlockProbeInterval < StoredBlockProbeLength
+                    || storedBlockProbeInterval > StoredBlockMaxProbeInterval
+                    || symbolsToStoredBlock <= 0
+                    || symbolsToStoredBlock > storedBlockProbeInterval
+                    || storedBlockProbeHits < 0 || (flags & ~3) != 0
+                    || storedRemaining < 0
+                    || storedRemaining > StoredBlockMaxLength
+                    || !storingBlock && (storedChained
+                    || storedRemaining > 0)) {
+                throw new IOException("Invalid snapshot.");
+            }
+        }
+    }
+
+    private int coderStateLength() {
+        return 13 + (checksum != null ? 4 : 0) + (storedBlocks ? 17 : 0);
+    }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Table of 16-bit records stored in direct buffers outside of the Java
+ * heap. A single buffer cannot exceed 2 GiB, so the table is split into
+ * segments.
+ *
+ * Direct buffers are zeroed on allocation, so records are stored xored
+ * with the initial value. That way a new table needs no filling pass.
+ * On little endian platforms this is also the snapshot representation, so
+ * snapshot records are copied in bulk between snapshot and table buffers.
+ *
+ * @author Piotr Tarsa
+ */
+final class DirectShortTable extends ShortTable {
+
+    private static final int SegmentSizeLog2 = 28;
+    private static final int SegmentMask = (1 << SegmentSizeLog2) - 1;
+    private static final boolean SnapshotNative =
+            ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    private final ByteBuffer[] byteSegments;
+    private final ShortBuffer[] segments;
+
+    DirectShortTable(final long size, final short initialValue) {
+        super(size, initialValue);
+        final int segmentsNumber = (int) ((size + SegmentMask)
+                >>> SegmentSizeLog2);
+        byteSegments = new ByteBuffer[segmentsNumber];
+        segments = new ShortBuffer[segmentsNumber];
+        for (int i = 0; i < segmentsNumber; i++) {
+            final int segmentSize = (int) Math.min(
+                    size - ((long) i << SegmentSizeLog2), SegmentMask + 1);
+            byteSegments[i] = ByteBuffer.allocateDirect(segmentSize * 2)
+                    .order(ByteOrder.nativeOrder());
+            segments[i] = byteSegments[i].asShortBuffer();
+        }
+    }
+
+    @Override
+    short get(final long index) {
+        return (short) (segments[(int) (index >>> SegmentSizeLog2)]
+                .get((int) index & SegmentMask) ^ initialValue);
+    }
+
+    @Override
+    void set(final long index, final short value) {
+        segments[(int) (index >>> SegmentSizeLog2)].put(
+                (int) index & SegmentMask, (short) (value ^ initialValue));
+    }
+
+    @Override
+    void reset() {
+        final short[] zeros = new short[4096];
+        for (final ShortBuffer segment : segments) {
+            segment.clear();
+            while (segment.hasRemaining()) {
+                segment.put(zeros, 0,
+                        Math.min(zeros.length, segment.remaining()));
+            }
+            segment.clear();
+        }
+    }
+
+    /**
+     * Returns a view of the bytes of given records, which have to lie in a
+     * single segment.
+     */
+    private ByteBuffer recordBytes(final long first, final int length) {
+        final ByteBuffer bytes = byteSegments[(int) (first
+                >>> SegmentSizeLog2)].duplicate();
+        final int offset = ((int) first & SegmentMask) * 2;
+        bytes.limit(offset + length * 2).position(offset);
+        return bytes;
+    }
+
+    @Override
+    boolean fillSnapshotPage(final long page, final ByteBuffer buffer) {
+        if (!SnapshotNative) {
+            return super.fillSnapshotPage(page, buffer);
+        }
+        final ByteBuffer bytes = recordBytes(page << SnapshotPageSizeLog2,
+                SnapshotPageSize);
+        boolean written = false;
+        for (int i = bytes.position(); i < bytes.limit() && !written;
+                i += 8) {
+            written = bytes.getLong(i) != 0;
+        }
+        if (written) {
+            buffer.clear();
+            buffer.put(bytes).flip();
+        }
+        return written;
+    }
+
+    @Override
+    void restoreRun(final long first, final ByteBuffer records) {
+        if (!SnapshotNative) {
+            super.restoreRun(first, records);
+            return;
+        }
+        long index = first;
+        while (records.hasRemaining()) {
+            final int length = (int) Math.min(records.remaining() / 2,
+                    SegmentMask + 1 - (index & SegmentMask));
+            final ByteBuffer chunk = records.duplicate();
+            chunk.limit(chunk.position() + length * 2);
+            recordBytes(index, length).put(chunk);
+            records.position(chunk.limit());
+            index += length;
+        }
+    }
+}
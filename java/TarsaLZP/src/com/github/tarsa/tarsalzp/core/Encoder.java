@@ -34,6 +34,10 @@ import com.github.tarsa.tarsalzp.Options;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 
 /**
  *
@@ -41,28 +45,263 @@ import java.io.OutputStream;
  */
 public final class Encoder extends Common {
 
+    /**
+     * Encoding engines. All of them produce identical output.
+     */
+    public enum Engine {
+
+        /**
+         * Processes input symbol by symbol.
+         */
+        Sequential,
+        /**
+         * Like sequential, but hashes contexts of upcoming symbols in small
+         * batches and loads their LZP records in advance, so cache misses on
+         * large LZP tables overlap with each other.
+         */
+        Lookahead,
+        /**
+         * Processes input in chunks, running a separate pass for each model
+         * to keep only one type of data in cache at a time.
+         */
+        Staged,
+        /**
+         * Like staged, but LZP models, adaptive probability maps and range
+         * coding run concurrently on three threads.
+         */
+        Pipelined
+    }
+
+    /**
+     * Outcome of an incremental encoding step.
+     */
+    public enum Status {
+
+        /**
+         * Whole source buffer was consumed and more input is needed.
+         */
+        Underflow,
+        /**
+         * Destination buffer is full. Encoding should be resumed with a
+         * buffer that has free space.
+         */
+        Overflow,
+        /**
+         * End of stream was encoded and all bytes were put into the
+         * destination buffers.
+         */
+        Finished
+    }
+    private static final int SnapshotCoderKind = 1;
+    /**
+     * Maximum number of symbols hashed at once by the lookahead engine.
+     */
+    private static final int LookaheadSymbols = 16;
+    /**
+     * Stored blocks are made of steps of this many bytes, each of them
+     * checked for incompressibility separately.
+     */
+    private static final int StoredBlockStep = 4096;
+    /**
+     * Minimum order-0 entropy of a step of a stored block, in bits per byte
+     * scaled by 2^14. Compressed media have almost 8 bits per byte.
+     */
+    private static final int StoredBlockMinEntropy = 31 << 12;
+    private final int[] stepHistogram = new int[256];
+    /**
+     * Bytes of the current stored block, written out when the block ends.
+     * Blocks are collected here instead of being taken from the input
+     * window, so their boundaries don't depend on how input is buffered.
+     */
+    private final byte[] storedBlock;
+    private final ByteBuffer storedBlockBuffer;
+    private int storedLength;
+    /**
+     * Whether bytes are collected into the stored block, from a positive
+     * decision on.
+     */
+    private boolean storingBlock;
+    /**
+     * Whether the flag telling that stored blocks follow was coded.
+     */
+    private boolean storedRunStarted;
+    /**
+     * Whether the last written stored block had the maximum length, so the
+     * range coder is already flushed and the next block follows directly.
+     */
+    private boolean storedChained;
+    private final long[] lookaheadHashesLow = new long[LookaheadSymbols];
+    private final long[] lookaheadHashesHigh = new long[LookaheadSymbols];
+    private final Engine engine;
+    private ChunkPipeline pipeline;
+    private Chunk chunk;
+    private int chunkPosition;
     private int rcBuffer;
     private int rcRange;
-    private int xFFRunLength = 0;
-    private int lastOutputByte = 0;
-    private boolean delay = false;
-    private boolean carry = false;
+    private int xFFRunLength;
+    private int lastOutputByte;
+    private boolean delay;
+    private boolean carry;
+    private boolean ended;
+    /**
+     * Position in the input window from which bytes weren't checksummed yet.
+     */
+    private int checksumStart;
+    /**
+     * Whether coding costs are only summed up instead of being range coded.
+     */
+    private final boolean estimating;
+    /**
+     * Sum of coding costs in bits scaled by 2^14.
+     */
+    private long estimatedCost;
 
     public Encoder(final InputStream inputStream,
             final OutputStream outputStream, final Options options) {
-        super(inputStream, outputStream, options);
+        this(inputStream, outputStream, options, Settings.Default);
+    }
+
+    public Encoder(final InputStream inputStream,
+            final OutputStream outputStream, final Options options,
+            final Settings settings) {
+        this(new StreamInputWindow(inputStream, InputWindow.DefaultSize,
+                false), new StreamOutputWindow(outputStream,
+                OutputWindow.DefaultSize), options, settings);
+    }
+
+    /**
+     * Creates an encoder for incremental, non-blocking encoding with
+     * {@link #encode(ByteBuffer, ByteBuffer, boolean)}. Output starts with
+     * the stream header, so it can be decoded by {@link Coder#decode}.
+     * Symbols are always encoded one by one, regardless of the engine chosen
+     * in settings.
+     */
+    public Encoder(final Options options, final Settings settings) {
+        this(new BufferInputWindow(ByteBuffer.allocate(0)),
+                new IncrementalOutputWindow(), options,
+                settings.withEngine(Engine.Sequential));
+        output.buffer.putLong(Coder.HeaderValue);
+        output.buffer.putLong(options.toPacked());
+    }
+
+    public Encoder(final Options options) {
+        this(options, Settings.Default);
+    }
+
+    Encoder(final InputWindow input, final OutputWindow output,
+            final Options options, final Settings settings) {
+        this(input, output, options, settings, false);
+    }
+
+    private Encoder(final InputWindow input, final OutputWindow output,
+            final Options options, final Settings settings,
+            final boolean estimating) {
+        super(input, output, options, settings);
+        final Engine selectedEngine = settings.getEngine();
+        // chunked engines model symbols before they can be stored
+        engine = options.hasStoredBlocks()
+                && selectedEngine != Engine.Sequential
+                ? Engine.Lookahead : selectedEngine;
+        this.estimating = estimating;
+        storedBlock = storedBlocks ? new byte[StoredBlockMaxLength] : null;
+        storedBlockBuffer = storedBlocks ? ByteBuffer.wrap(storedBlock) : null;
+        initCoder();
+    }
+
+    /**
+     * Creates an encoder that runs the model over the input, but only sums
+     * up coding costs of symbols instead of range coding them. Nothing is
+     * written to the output window and no checksum is computed.
+     */
+    static Encoder estimator(final InputWindow input, final Options options,
+            final Settings settings) {
+        return new Encoder(input, new DiscardingOutputWindow(16),
+                options.withChecksum(false), settings, true);
+    }
+
+    /**
+     * Size of range coded data estimated from coding costs accumulated so
+     * far, in bytes. Only meaningful for encoders created by
+     * {@link #estimator}.
+     */
+    long getEstimatedSize() {
+        return (estimatedCost >> 17) + 5;
+    }
+
+    /**
+     * Prepares the encoder for another stream. Model tables are reset
+     * instead of being allocated again.
+     */
+    public void reset(final InputStream inputStream,
+            final OutputStream outputStream) {
+        reset(new StreamInputWindow(inputStream, InputWindow.DefaultSize,
+                false), new StreamOutputWindow(outputStream,
+                OutputWindow.DefaultSize));
+    }
+
+    @Override
+    void reset(final InputWindow input, final OutputWindow output) {
+        close();
+        super.reset(input, output);
+        initCoder();
+    }
+
+    private void initCoder() {
+        if (engine == Engine.Pipelined) {
+            pipeline = new ChunkPipeline(2, Chunk.DefaultCapacity,
+                    new ChunkPipeline.Stage() {
+
+                        @Override
+                        public void process(final Chunk chunk)
+                                throws IOException {
+                            readChunk(chunk);
+                            lzpPasses(chunk);
+                        }
+                    }, new ChunkPipeline.Stage() {
+
+                        @Override
+                        public void process(final Chunk chunk) {
+                            apmPass(chunk);
+                        }
+                    });
+            chunk = null;
+        } else if (engine == Engine.Staged) {
+            if (chunk == null) {
+                chunk = new Chunk(Chunk.DefaultCapacity);
+            }
+            chunk.length = 0;
+            chunk.last = false;
+        }
+        chunkPosition = 0;
         rcBuffer = 0;
         rcRange = 0x7FFFFFFF;
+        xFFRunLength = 0;
+        lastOutputByte = 0;
+        delay = false;
+        carry = false;
+        ended = false;
+        estimatedCost = 0;
+        storedLength = 0;
+        storingBlock = false;
+        storedRunStarted = false;
+        storedChained = false;
+    }
+
+    private void writeByte(final int octet) throws IOException {
+        if (!output.buffer.hasRemaining()) {
+            output.flush();
+        }
+        output.buffer.put((byte) octet);
     }
 
     private void outputByte(final int octet) throws IOException {
         if (octet != 0xff || carry) {
             if (delay) {
-                outputStream.write(lastOutputByte + (carry ? 1 : 0));
+                writeByte(lastOutputByte + (carry ? 1 : 0));
             }
             while (xFFRunLength > 0) {
                 xFFRunLength--;
-                outputStream.write(carry ? 0x00 : 0xff);
+                writeByte(carry ? 0x00 : 0xff);
             }
             lastOutputByte = octet;
             delay = true;
@@ -90,6 +329,11 @@ public final class Encoder extends Common {
 
     private void encodeFlag(final int probability, final boolean match)
             throws IOException {
+        if (estimating) {
+            estimatedCost += (15 << 14)
+                    - Lg2.nLog2(match ? probability : 0x8000 - probability);
+            return;
+        }
         normalize();
         final int rcHelper = (rcRange >> 15) * probability;
         if (match) {
@@ -101,6 +345,9 @@ public final class Encoder extends Common {
     }
 
     private void encodeSkewed(final boolean flag) throws IOException {
+        if (estimating) {
+            return;
+        }
         normalize();
         if (flag) {
             rcRange--;
@@ -113,14 +360,21 @@ public final class Encoder extends Common {
     private void encodeSingleOnlyLowLzp(final int nextSymbol)
             throws IOException {
         computeHashesOnlyLowLzp();
-        final int lzpStateLow = getLzpStateLow();
-        final int predictedSymbolLow = getLzpPredictedSymbolLow();
+        encodeHashedOnlyLowLzp(nextSymbol);
+    }
+
+    private void encodeHashedOnlyLowLzp(final int nextSymbol)
+            throws IOException {
+        final short lzpRecordLow = getLzpRecordLow();
+        final int lzpStateLow = (lzpRecordLow >> 8) & 0xff;
+        final int predictedSymbolLow = lzpRecordLow & 0xff;
         final int modelLowFrequency = getApmLow(lzpStateLow);
         final boolean matchLow = nextSymbol == predictedSymbolLow;
         encodeFlag(modelLowFrequency, matchLow);
         updateApmLow(lzpStateLow, matchLow);
         updateLzpStateLow(lzpStateLow, nextSymbol, matchLow);
         if (!matchLow) {
+            computeLiteralCoderContext();
             encodeSymbol(nextSymbol, predictedSymbolLow);
         }
         updateContext(nextSymbol);
@@ -128,11 +382,17 @@ public final class Encoder extends Common {
 
     private void encodeSingle(final int nextSymbol) throws IOException {
         computeHashes();
-        final int lzpStateLow = getLzpStateLow();
-        final int predictedSymbolLow = getLzpPredictedSymbolLow();
+        encodeHashed(nextSymbol);
+    }
+
+    private void encodeHashed(final int nextSymbol) throws IOException {
+        final short lzpRecordLow = getLzpRecordLow();
+        final int lzpStateLow = (lzpRecordLow >> 8) & 0xff;
+        final int predictedSymbolLow = lzpRecordLow & 0xff;
         final int modelLowFrequency = getApmLow(lzpStateLow);
-        final int lzpStateHigh = getLzpStateHigh();
-        final int predictedSymbolHigh = getLzpPredictedSymbolHigh();
+        final short lzpRecordHigh = getLzpRecordHigh();
+        final int lzpStateHigh = (lzpRecordHigh >> 8) & 0xff;
+        final int predictedSymbolHigh = lzpRecordHigh & 0xff;
         final int modelHighFrequency = getApmHigh(lzpStateHigh);
         if (modelLowFrequency >= modelHighFrequency) {
             final boolean matchHigh = nextSymbol == predictedSymbolHigh;
@@ -143,6 +403,7 @@ public final class Encoder extends Common {
             updateApmLow(lzpStateLow, matchLow);
             updateLzpStateLow(lzpStateLow, nextSymbol, matchLow);
             if (!matchLow) {
+                computeLiteralCoderContext();
                 encodeSymbol(nextSymbol, predictedSymbolLow);
             }
         } else {
@@ -154,27 +415,38 @@ public final class Encoder extends Common {
             updateApmHigh(lzpStateHigh, matchHigh);
             updateLzpStateHigh(lzpStateHigh, nextSymbol, matchHigh);
             if (!matchHigh) {
+                computeLiteralCoderContext();
                 encodeSymbol(nextSymbol, predictedSymbolHigh);
             }
         }
         updateContext(nextSymbol);
     }
 
-    private void encodeSymbol(final int nextSymbol,
+    void encodeSymbol(final int nextSymbol,
             final int mispredictedSymbol) throws IOException {
+        if (estimating) {
+            estimateSymbol(nextSymbol, mispredictedSymbol);
+            return;
+        }
         normalize();
-        computeLiteralCoderContext();
         final int index = (getLastLiteralCoderContext() << 8) + nextSymbol;
         if (!useFixedProbabilities()) {
             short cumulativeExclusiveFrequency = 0;
-            final int symbolGroup = index >> 4;
-            for (int indexPartial = getLastLiteralCoderContext() << 4;
-                    indexPartial < symbolGroup; indexPartial++) {
-                cumulativeExclusiveFrequency += rangesGrouped[indexPartial];
-            }
-            for (int indexPartial = symbolGroup << 4; indexPartial < index;
-                    indexPartial++) {
-                cumulativeExclusiveFrequency += rangesSingle[indexPartial];
+            if (fenwickLiteralCoder) {
+                cumulativeExclusiveFrequency = (short) getLiteralTreePrefix(
+                        index);
+            } else {
+                final int symbolGroup = index >> 4;
+                for (int indexPartial = getLastLiteralCoderContext() << 4;
+                        indexPartial < symbolGroup; indexPartial++) {
+                    cumulativeExclusiveFrequency +=
+                            rangesGrouped[indexPartial];
+                }
+                for (int indexPartial = symbolGroup << 4;
+                        indexPartial < index; indexPartial++) {
+                    cumulativeExclusiveFrequency +=
+                            rangesSingle[indexPartial];
+                }
             }
             final short mispredictedSymbolFrequency = rangesSingle[
                     (getLastLiteralCoderContext() << 8) + mispredictedSymbol];
@@ -196,26 +468,669 @@ public final class Encoder extends Common {
         updateLiteralCoder(index);
     }
 
-    void flush() throws IOException {
+    private void estimateSymbol(final int nextSymbol,
+            final int mispredictedSymbol) {
+        final int index = (getLastLiteralCoderContext() << 8) + nextSymbol;
+        if (!useFixedProbabilities()) {
+            estimatedCost += Lg2.nLog2(rangesTotal[getLastLiteralCoderContext()]
+                    - rangesSingle[(getLastLiteralCoderContext() << 8)
+                    + mispredictedSymbol]) - Lg2.nLog2(rangesSingle[index]);
+        } else {
+            estimatedCost += FixedSymbolCost;
+        }
+        updateRecentCost(rangesSingle[index],
+                rangesTotal[getLastLiteralCoderContext()]);
+        updateLiteralCoder(index);
+    }
+
+    private void flushRangeCoder() throws IOException {
         for (int i = 0; i < 5; i++) {
             outputByte(((int) (rcBuffer >> 23)) & 0xFF);
             rcBuffer <<= 8;
         }
     }
 
+    /**
+     * Brings the range coder to the state from the beginning of stream. The
+     * last byte put by flush is never written, like at the end of stream.
+     */
+    private void restartRangeCoder() {
+        rcBuffer = 0;
+        rcRange = 0x7FFFFFFF;
+        xFFRunLength = 0;
+        lastOutputByte = 0;
+        delay = false;
+        carry = false;
+    }
+
+    /**
+     * Checks if order-0 entropy of bytes in the range is high enough for
+     * them to be stored.
+     */
+    private boolean highEntropy(final int from, final int length) {
+        final int[] histogram = stepHistogram;
+        Arrays.fill(histogram, 0);
+        for (int i = from; i < from + length; i++) {
+            histogram[storedBlock[i] & 0xff]++;
+        }
+        long cost = (long) length * Lg2.nLog2(length);
+        for (final int count : histogram) {
+            if (count > 0) {
+                cost -= (long) count * Lg2.nLog2(count);
+            }
+        }
+        return cost >= (long) length * StoredBlockMinEntropy;
+    }
+
+    private int startStoredBlock(final ByteBuffer source, final long limit)
+            throws IOException {
+        storingBlock = true;
+        return stageStoredBytes(source, limit);
+    }
+
+    /**
+     * Moves bytes from the source to the stored block, at most limit of
+     * them, deciding about every step as soon as it's complete.
+     *
+     * @return number of consumed bytes
+     */
+    private int stageStoredBytes(final ByteBuffer source, final long limit)
+            throws IOException {
+        int consumed = 0;
+        while (storingBlock && consumed < limit && source.hasRemaining()) {
+            final int stepEnd = storedLength - storedLength % StoredBlockStep
+                    + StoredBlockStep;
+            final int length = (int) Math.min(Math.min(source.remaining(),
+                    limit - consumed), stepEnd - storedLength);
+            source.get(storedBlock, storedLength, length);
+            storedLength += length;
+            consumed += length;
+            if (storedLength == stepEnd) {
+                decideStoredStep(false);
+            }
+        }
+        return consumed;
+    }
+
+    /**
+     * Decides about the rest of collected bytes, when there's no more input.
+     */
+    private void endStoredBytes() throws IOException {
+        while (storingBlock) {
+            decideStoredStep(true);
+        }
+    }
+
+    /**
+     * Decides about the last collected step, which is partial only at the
+     * end of input. Step is incompressible if it has high order-0 entropy
+     * and coding it with the current model is estimated to cost more than
+     * storing it, with the length of a block and the range coder flush.
+     * Incompressible step extends the stored block, otherwise
+     * the block made of previous steps is written out and bytes of the step
+     * are coded with the model. Before the first block of a run the
+     * decision is coded as a flag, so blocks are never empty, except for the
+     * one ending a run right after a block of the maximum length.
+     */
+    private void decideStoredStep(final boolean last) throws IOException {
+        final int stepStart = storedLength == 0 ? 0
+                : (storedLength - 1) / StoredBlockStep * StoredBlockStep;
+        final int length = storedLength - stepStart;
+        final boolean incompressible = length > 0
+                && highEntropy(stepStart, length)
+                && estimateCost(storedBlockBuffer, stepStart, storedLength)
+                > (length + 8L) << 17;
+        if (!storedRunStarted) {
+            encodeFlag(StoredBlockFlagProbability, incompressible);
+            if (!incompressible) {
+                storingBlock = false;
+                endStoredBlocks();
+                // the first symbol already went through the decision
+                encodeStagedSymbol(storedBlock[0] & 0xff);
+                encodeStaged(1, storedLength);
+                return;
+            }
+            storedRunStarted = true;
+        }
+        if (incompressible) {
+            updateLzp(storedBlockBuffer, stepStart, storedLength);
+            if (last || storedLength == StoredBlockMaxLength) {
+                writeStoredBlock(storedLength);
+                storedLength = 0;
+            }
+        } else {
+            writeStoredBlock(stepStart);
+            encodeStaged(stepStart, storedLength);
+        }
+    }
+
+    /**
+     * Writes out the given number of bytes from the start of the stored
+     * block. The range coder is flushed before the first block of a run and
+     * started again after the last one, which is any block shorter than the
+     * maximum length.
+     */
+    private void writeStoredBlock(final int length) throws IOException {
+        if (estimating) {
+            estimatedCost += ((storedChained ? 4L : 8L) + length) << 17;
+        } else {
+            if (!storedChained) {
+                flushRangeCoder();
+            }
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                writeByte((length >>> shift) & 0xff);
+            }
+            int written = 0;
+            while (written < length) {
+                if (!output.buffer.hasRemaining()) {
+                    output.flush();
+                }
+                final int chunkLength = Math.min(length - written,
+                        output.buffer.remaining());
+                output.buffer.put(storedBlock, written, chunkLength);
+                written += chunkLength;
+            }
+        }
+        storedChained = length == StoredBlockMaxLength;
+        if (!storedChained) {
+            storingBlock = false;
+            storedRunStarted = false;
+            restartRangeCoder();
+            endStoredBlocks();
+        }
+    }
+
+    /**
+     * Codes collected bytes that aren't stored with the model. Another
+     * decision about stored blocks can come up among them, in which case
+     * bytes from there on are collected again.
+     */
+    private void encodeStaged(final int from, final int to)
+            throws IOException {
+        storedLength = 0;
+        for (int i = from; i < to; i++) {
+            encodeSkewed(true);
+            if (storedBlockDue()) {
+                System.arraycopy(storedBlock, i, storedBlock, 0, to - i);
+                storedLength = to - i;
+                storingBlock = true;
+                return;
+            }
+            encodeStagedSymbol(storedBlock[i] & 0xff);
+        }
+    }
+
+    private void encodeStagedSymbol(final int symbol) throws IOException {
+        if (onlyLowLzp) {
+            encodeSingleOnlyLowLzp(symbol);
+        } else {
+            encodeSingle(symbol);
+        }
+    }
+
+    /**
+     * Writes CRC32C of uncompressed data after the range coder is flushed,
+     * if options ask for it.
+     */
+    private void writeChecksum() throws IOException {
+        if (checksum != null) {
+            final int value = checksum.getValue();
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                writeByte((value >>> shift) & 0xff);
+            }
+        }
+    }
+
+    void flush() throws IOException {
+        flushRangeCoder();
+        writeChecksum();
+        output.flush();
+    }
+
+    /**
+     * Passes bytes consumed from the input window since the last call to
+     * the checksum.
+     */
+    private void updateChecksum() throws IOException {
+        if (checksum != null) {
+            checksum.update(input.buffer, checksumStart,
+                    input.buffer.position());
+        }
+        checksumStart = input.buffer.position();
+    }
+
+    private boolean refillInput() throws IOException {
+        updateChecksum();
+        final boolean refilled = input.refill();
+        checksumStart = input.buffer.position();
+        return refilled;
+    }
+
+    private void encodeChunk(final int from, final int to)
+            throws IOException {
+        final byte[] symbols = chunk.symbols;
+        final short[] probabilities = chunk.probabilities;
+        final byte[] predictedSymbols = chunk.predictedSymbols;
+        long literalCoderContext = chunk.contextAt(from);
+        for (int i = from; i < to; i++) {
+            final int symbol = symbols[i] & 0xff;
+            final int predictedSymbol = predictedSymbols[i] & 0xff;
+            encodeSkewed(true);
+            final boolean match = symbol == predictedSymbol;
+            encodeFlag(probabilities[i], match);
+            if (!match) {
+                computeLiteralCoderContext(literalCoderContext);
+                encodeSymbol(symbol, predictedSymbol);
+            }
+            literalCoderContext = (literalCoderContext << 8) | symbol;
+        }
+    }
+
+    private void readChunk(final Chunk chunk) throws IOException {
+        chunk.startContext = getContext();
+        chunk.length = 0;
+        chunk.last = false;
+        while (chunk.length < chunk.capacity()) {
+            if (!input.buffer.hasRemaining() && !input.refill()) {
+                chunk.last = true;
+                break;
+            }
+            final int length = Math.min(input.buffer.remaining(),
+                    chunk.capacity() - chunk.length);
+            input.buffer.get(chunk.symbols, chunk.length, length);
+            chunk.length += length;
+        }
+        if (checksum != null) {
+            checksum.update(chunk.symbols, 0, chunk.length);
+        }
+    }
+
+    private void lzpPasses(final Chunk chunk) {
+        lzpLowPass(chunk);
+        if (!onlyLowLzp) {
+            lzpHighPass(chunk);
+        }
+    }
+
+    private void nextChunk() throws IOException {
+        if (pipeline != null) {
+            if (chunk != null) {
+                pipeline.release();
+            }
+            chunk = pipeline.acquire();
+        } else {
+            readChunk(chunk);
+            lzpPasses(chunk);
+            apmPass(chunk);
+        }
+        chunkPosition = 0;
+    }
+
+    private long encodeChunked(final long limit) throws IOException {
+        long processed = 0;
+        while (processed < limit) {
+            if (chunk == null || chunkPosition == chunk.length) {
+                if (chunk != null && chunk.last) {
+                    encodeSkewed(false);
+                    return processed;
+                }
+                nextChunk();
+                continue;
+            }
+            final int end = chunkPosition + (int) Math.min(
+                    chunk.length - chunkPosition, limit - processed);
+            encodeChunk(chunkPosition, end);
+            processed += end - chunkPosition;
+            chunkPosition = end;
+        }
+        return limit;
+    }
+
+    /**
+     * Releases resources held by the engine.
+     */
+    void close() {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
     long encode(final long limit) throws IOException {
+        if (engine != Engine.Sequential && engine != Engine.Lookahead) {
+            return encodeChunked(limit);
+        }
+        checksumStart = input.buffer.position();
+        final long processed;
+        if (engine == Engine.Lookahead) {
+            processed = encodeLookahead(limit);
+        } else if (onlyLowLzp) {
+            processed = encodeOnlyLowLzp(limit);
+        } else {
+            processed = encodeSequential(limit);
+        }
+        updateChecksum();
+        return processed;
+    }
+
+    private long encodeSequential(final long limit) throws IOException {
+        for (long i = 0; i < limit; i++) {
+            final boolean available = input.buffer.hasRemaining()
+                    || refillInput();
+            if (storingBlock) {
+                if (available) {
+                    i += stageStoredBytes(input.buffer, limit - i) - 1;
+                    continue;
+                }
+                endStoredBytes();
+            }
+            encodeSkewed(available);
+            if (!available) {
+                return i;
+            }
+            if (storedBlocks && storedBlockDue()) {
+                i += startStoredBlock(input.buffer, limit - i) - 1;
+                continue;
+            }
+            encodeSingle(input.buffer.get() & 0xff);
+        }
+        return limit;
+    }
+
+    /**
+     * Same as the sequential part of encode, but with the model shape
+     * checked once instead of for every symbol.
+     */
+    private long encodeOnlyLowLzp(final long limit) throws IOException {
         for (long i = 0; i < limit; i++) {
-            final int symbol = inputStream.read();
-            encodeSkewed(symbol != -1);
-            if (symbol == -1) {
+            final boolean available = input.buffer.hasRemaining()
+                    || refillInput();
+            if (storingBlock) {
+                if (available) {
+                    i += stageStoredBytes(input.buffer, limit - i) - 1;
+                    continue;
+                }
+                endStoredBytes();
+            }
+            encodeSkewed(available);
+            if (!available) {
+                return i;
+            }
+            if (storedBlocks && storedBlockDue()) {
+                i += startStoredBlock(input.buffer, limit - i) - 1;
+                continue;
+            }
+            encodeSingleOnlyLowLzp(input.buffer.get() & 0xff);
+        }
+        return limit;
+    }
+
+    /**
+     * Same as the sequential part of encode, but symbols are hashed in
+     * batches of up to LookaheadSymbols ahead of coding them. LZP records of
+     * the whole batch are loaded one after another, so cache misses on them
+     * overlap instead of stalling coding of every symbol separately. Hashes
+     * depend only on contexts, so they stay valid while the batch is coded.
+     */
+    private long encodeLookahead(final long limit) throws IOException {
+        final long[] hashesLow = lookaheadHashesLow;
+        final long[] hashesHigh = lookaheadHashesHigh;
+        int batchPosition = 0;
+        int batchLength = 0;
+        for (long i = 0; i < limit; i++) {
+            final boolean available = input.buffer.hasRemaining()
+                    || refillInput();
+            if (storingBlock) {
+                if (available) {
+                    i += stageStoredBytes(input.buffer, limit - i) - 1;
+                    batchPosition = 0;
+                    batchLength = 0;
+                    continue;
+                }
+                endStoredBytes();
+            }
+            encodeSkewed(available);
+            if (!available) {
                 return i;
             }
+            if (storedBlocks && storedBlockDue()) {
+                i += startStoredBlock(input.buffer, limit - i) - 1;
+                batchPosition = 0;
+                batchLength = 0;
+                continue;
+            }
+            final ByteBuffer buffer = input.buffer;
+            if (batchPosition == batchLength) {
+                batchLength = (int) Math.min(Math.min(LookaheadSymbols,
+                        buffer.remaining()), limit - i);
+                final int position = buffer.position();
+                long futureContext = getContext();
+                for (int j = 0; j < batchLength; j++) {
+                    computeFutureHashes(futureContext);
+                    hashesLow[j] = getHashLow();
+                    hashesHigh[j] = getHashHigh();
+                    futureContext = (futureContext << 8)
+                            | (buffer.get(position + j) & 0xff);
+                }
+                batchPosition = 0;
+            }
+            setHashes(hashesLow[batchPosition], hashesHigh[batchPosition]);
+            batchPosition++;
+            final int symbol = buffer.get() & 0xff;
+            if (onlyLowLzp) {
+                encodeHashedOnlyLowLzp(symbol);
+            } else {
+                encodeHashed(symbol);
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Encodes all bytes remaining in the input window symbol by symbol,
+     * without treating the end of the window as the end of stream.
+     */
+    void encodeRemaining() throws IOException {
+        checksumStart = input.buffer.position();
+        while (input.buffer.hasRemaining()) {
+            if (storingBlock) {
+                stageStoredBytes(input.buffer, input.buffer.remaining());
+                continue;
+            }
+            encodeSkewed(true);
+            if (storedBlocks && storedBlockDue()) {
+                startStoredBlock(input.buffer, input.buffer.remaining());
+                continue;
+            }
+            final int symbol = input.buffer.get() & 0xff;
             if (onlyLowLzp) {
                 encodeSingleOnlyLowLzp(symbol);
             } else {
                 encodeSingle(symbol);
             }
         }
-        return limit;
+        updateChecksum();
+    }
+
+    /**
+     * Encodes the end of stream marker and flushes the range coder.
+     */
+    void finish() throws IOException {
+        endStoredBytes();
+        encodeSkewed(false);
+        flush();
+    }
+
+    /**
+     * Same as {@link #encode(ByteBuffer, ByteBuffer, boolean)} with more
+     * input expected.
+     */
+    public Status encode(final ByteBuffer source, final ByteBuffer destination)
+            throws IOException {
+        return encode(source, destination, false);
+    }
+
+    /**
+     * Encodes bytes available in the source buffer into the destination
+     * buffer, stopping when the source is exhausted or the destination is
+     * full, and never blocking. Encoding can be resumed by another call with
+     * other buffers. Buffers positions are advanced by the number of bytes
+     * consumed and produced. Works only on encoders created with
+     * {@link #Encoder(Options, Settings)}.
+     *
+     * @param endOfInput tells that no input follows the source buffer, so
+     * the stream should be ended after encoding it
+     * @return {@link Status#Overflow} if the destination has to be drained
+     * and the call repeated; {@link Status#Underflow} if more input is
+     * needed; {@link Status#Finished} if the stream is complete
+     */
+    public Status encode(final ByteBuffer source, final ByteBuffer destination,
+            final boolean endOfInput) throws IOException {
+        if (!(output instanceof IncrementalOutputWindow)) {
+            throw new IllegalStateException(
+                    "Encoder was not created for incremental encoding.");
+        }
+        final IncrementalOutputWindow window = (IncrementalOutputWindow) output;
+        if (!window.drain(destination)) {
+            return Status.Overflow;
+        }
+        if (ended) {
+            return Status.Finished;
+        }
+        final int sourceStart = source.position();
+        while (source.hasRemaining() && !window.isSpilling()) {
+            if (storingBlock) {
+                stageStoredBytes(source, source.remaining());
+                continue;
+            }
+            encodeSkewed(true);
+            if (storedBlocks && storedBlockDue()) {
+                startStoredBlock(source, source.remaining());
+                continue;
+            }
+            final int symbol = source.get() & 0xff;
+            if (onlyLowLzp) {
+                encodeSingleOnlyLowLzp(symbol);
+            } else {
+                encodeSingle(symbol);
+            }
+        }
+        if (checksum != null) {
+            checksum.update(source, sourceStart, source.position());
+        }
+        if (source.hasRemaining()) {
+            return Status.Overflow;
+        }
+        if (endOfInput) {
+            endStoredBytes();
+            encodeSkewed(false);
+            flushRangeCoder();
+            writeChecksum();
+            ended = true;
+            return window.isSpilling() ? Status.Overflow : Status.Finished;
+        }
+        return window.isSpilling() ? Status.Overflow : Status.Underflow;
+    }
+
+    /**
+     * Starts coding from the model trained in the dictionary. Has to be
+     * called before encoding the stream, after creating or resetting the encoder.
+     */
+    public void prime(final ModelDictionary dictionary) throws IOException {
+        primeModel(dictionary);
+    }
+
+    private void checkSnapshotsSupported() {
+        if (engine != Engine.Sequential && engine != Engine.Lookahead) {
+            throw new IllegalStateException(
+                    "Only sequential and lookahead engines support snapshots.");
+        }
+    }
+
+    /**
+     * Writes a snapshot of the model and range coder state. Bytes encoded
+     * so far are flushed first, except those kept by incremental encoding,
+     * which have to be drained before. Encoding can be resumed by an encoder
+     * with the same options using {@link #restoreState}, given the input
+     * following the bytes encoded so far and an output appending to the
+     * bytes produced so far. Only the sequential and lookahead engines
+     * support snapshots.
+     */
+    public void saveState(final WritableByteChannel channel)
+            throws IOException {
+        checkSnapshotsSupported();
+        output.flush();
+        final ByteBuffer coderState = ByteBuffer.allocate(
+                coderStateLength() + storedLength);
+        coderState.putInt(rcBuffer).putInt(rcRange).putInt(xFFRunLength);
+        coderState.putInt(lastOutputByte).put((byte) (delay ? 1 : 0));
+        coderState.put((byte) (carry ? 1 : 0)).put((byte) (ended ? 1 : 0));
+        if (checksum != null) {
+            coderState.putInt(checksum.getValue());
+        }
+        if (storedBlocks) {
+            coderState.putInt(symbolsToStoredBlock)
+                    .putInt(storedBlockProbeHits)
+                    .putInt(storedBlockProbeInterval);
+            coderState.put((byte) ((storingBlock ? 1 : 0)
+                    + (storedChained ? 2 : 0) + (storedRunStarted ? 4 : 0)));
+            coderState.putInt(storedLength).put(storedBlock, 0, storedLength);
+        }
+        coderState.flip();
+        saveSnapshot(channel, SnapshotCoderKind, coderState);
+    }
+
+    /**
+     * Replaces the model and range coder state with a snapshot written by
+     * {@link #saveState}.
+     */
+    public void restoreState(final ReadableByteChannel channel)
+            throws IOException {
+        checkSnapshotsSupported();
+        final ByteBuffer coderState = restoreSnapshot(channel,
+                SnapshotCoderKind);
+        if (coderState.remaining() < coderStateLength()) {
+            throw new IOException("Invalid snapshot.");
+        }
+        rcBuffer = coderState.getInt();
+        rcRange = coderState.getInt();
+        xFFRunLength = coderState.getInt();
+        lastOutputByte = coderState.getInt();
+        delay = coderState.get() != 0;
+        carry = coderState.get() != 0;
+        ended = coderState.get() != 0;
+        if (checksum != null) {
+            checksum.reset(coderState.getInt());
+        }
+        if (storedBlocks) {
+            symbolsToStoredBlock = coderState.getInt();
+            storedBlockProbeHits = coderState.getInt();
+            storedBlockProbeInterval = coderState.getInt();
+            final int flags = coderState.get();
+            storingBlock = (flags & 1) != 0;
+            storedChained = (flags & 2) != 0;
+            storedRunStarted = (flags & 4) != 0;
+            storedLength = coderState.getInt();
+            if (storedBlockProbeInterval < StoredBlockProbeLength
+                    || storedBlockProbeInterval > StoredBlockMaxProbeInterval
+                    || symbolsToStoredBlock <= 0
+                    || symbolsToStoredBlock > storedBlockProbeInterval
+                    || storedBlockProbeHits < 0 || (flags & ~7) != 0
+                    || storedChained && !storedRunStarted
+                    || storedRunStarted && !storingBlock
+                    || storedLength < 0
+                    || storedLength >= StoredBlockMaxLength
+                    || storedLength > 0 && !storingBlock
+                    || coderState.remaining() != storedLength) {
+                throw new IOException("Invalid snapshot.");
+            }
+            coderState.get(storedBlock, 0, storedLength);
+        }
+        if (coderState.hasRemaining()) {
+            throw new IOException("Invalid snapshot.");
+        }
+    }
+
+    private int coderStateLength() {
+        return 19 + (checksum != null ? 4 : 0) + (storedBlocks ? 17 : 0);
     }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Output window collecting all bytes in memory. Flush doubles the capacity.
+ *
+ * @author Piotr Tarsa
+ */
+final class GrowingOutputWindow extends OutputWindow {
+
+    GrowingOutputWindow(final int initialCapacity) {
+        buffer = ByteBuffer.allocate(Math.max(initialCapacity, 16));
+    }
+
+    @Override
+    void flush() {
+        if (!buffer.hasRemaining()) {
+            final int capacity = buffer.capacity();
+            final int newCapacity = capacity <= Integer.MAX_VALUE / 2
+                    ? capacity * 2 : Integer.MAX_VALUE;
+            if (newCapacity == capacity) {
+                throw new OutOfMemoryError("Output too big.");
+            }
+            buffer.flip();
+            buffer = ByteBuffer.allocate(newCapacity).put(buffer);
+        }
+    }
+
+    /**
+     * Returns collected bytes, ready for reading.
+     */
+    ByteBuffer result() {
+        final ByteBuffer result = buffer.duplicate();
+        result.flip();
+        return result;
+    }
+}
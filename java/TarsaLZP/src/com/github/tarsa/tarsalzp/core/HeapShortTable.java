@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import java.util.Arrays;
+
+/**
+ * Table of 16-bit records stored in Java arrays, filled eagerly. Tables
+ * bigger than 2^30 records are split into segments.
+ *
+ * @author Piotr Tarsa
+ */
+final class HeapShortTable extends ShortTable {
+
+    private static final int SegmentSizeLog2 = 30;
+    private static final int SegmentMask = (1 << SegmentSizeLog2) - 1;
+    private final short[][] segments;
+
+    HeapShortTable(final long size, final short initialValue) {
+        super(size, initialValue);
+        segments = new short[(int) ((size + SegmentMask)
+                >>> SegmentSizeLog2)][];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new short[(int) Math.min(
+                    size - ((long) i << SegmentSizeLog2), SegmentMask + 1)];
+        }
+        reset();
+    }
+
+    @Override
+    short get(final long index) {
+        return segments[(int) (index >>> SegmentSizeLog2)]
+                [(int) index & SegmentMask];
+    }
+
+    @Override
+    void set(final long index, final short value) {
+        segments[(int) (index >>> SegmentSizeLog2)]
+                [(int) index & SegmentMask] = value;
+    }
+
+    @Override
+    void reset() {
+        for (final short[] segment : segments) {
+            Arrays.fill(segment, initialValue);
+        }
+    }
+}
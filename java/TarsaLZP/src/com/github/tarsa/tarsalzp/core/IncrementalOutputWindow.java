@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Output window writing directly into buffers supplied by the caller of
+ * incremental encoding. When the supplied buffer fills up, further bytes
+ * are kept in an internal spill buffer until they can be drained into the
+ * next supplied buffer.
+ *
+ * @author Piotr Tarsa
+ */
+final class IncrementalOutputWindow extends OutputWindow {
+
+    private ByteBuffer spill = ByteBuffer.allocate(64);
+
+    IncrementalOutputWindow() {
+        buffer = spill;
+    }
+
+    /**
+     * Tells if encoded bytes go to the spill buffer, ie the last supplied
+     * buffer is full or none was supplied yet.
+     */
+    boolean isSpilling() {
+        return buffer == spill;
+    }
+
+    /**
+     * Moves pending bytes from the spill buffer to the target and, if all of
+     * them fit, makes the target the current window.
+     *
+     * @return true if there are no pending bytes left
+     */
+    boolean drain(final ByteBuffer target) {
+        if (spill.position() > 0) {
+            spill.flip();
+            final int length = Math.min(spill.remaining(), target.remaining());
+            final int limit = spill.limit();
+            spill.limit(spill.position() + length);
+            target.put(spill);
+            spill.limit(limit);
+            spill.compact();
+            if (spill.position() > 0) {
+                buffer = spill;
+                return false;
+            }
+        }
+        buffer = target;
+        return true;
+    }
+
+    @Override
+    void flush() {
+        if (buffer != spill) {
+            buffer = spill;
+        } else if (!spill.hasRemaining()) {
+            spill.flip();
+            spill = ByteBuffer.allocate(spill.capacity() * 2).put(spill);
+            buffer = spill;
+        }
+    }
+}
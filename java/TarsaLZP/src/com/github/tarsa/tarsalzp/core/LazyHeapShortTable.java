@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Table of 16-bit records stored in Java arrays, one per page. All pages
+ * initially share a single read only page filled with the initial value
+ * and get their own array on first write, so untouched parts of the table
+ * take neither time nor memory. Reset returns written pages to a free list
+ * and costs time proportional to the number of written pages.
+ * <p>
+ * Pages of a table can also be frozen into a template, which other tables
+ * share read only the same way as the initial page. Priming a table with a
+ * template costs time proportional to the number of template pages and
+ * later writes copy only the pages they touch. Shared pages have one extra
+ * record, so they are told apart from own pages by length, which is read
+ * for bounds checking anyway.
+ *
+ * @author Piotr Tarsa
+ */
+final class LazyHeapShortTable extends ShortTable {
+
+    /**
+     * Read only pages which differ from the initial state.
+     */
+    static final class Template {
+
+        private final int[] pageNumbers;
+        private final short[][] pages;
+
+        private Template(final int[] pageNumbers, final short[][] pages) {
+            this.pageNumbers = pageNumbers;
+            this.pages = pages;
+        }
+    }
+    private static final int PageSizeLog2 = SnapshotPageSizeLog2;
+    private static final int PageMask = (1 << PageSizeLog2) - 1;
+    private final int pageLength;
+    private final short[] initialPage;
+    private final short[][] pages;
+    private int[] writtenPages = new int[64];
+    private int writtenPagesCount = 0;
+    private Template template = null;
+    private final Deque<short[]> freePages = new ArrayDeque<short[]>();
+
+    LazyHeapShortTable(final long size, final short initialValue) {
+        super(size, initialValue);
+        pageLength = (int) Math.min(size, PageMask + 1);
+        initialPage = new short[pageLength + 1];
+        Arrays.fill(initialPage, initialValue);
+        pages = new short[(int) ((size + PageMask) >>> PageSizeLog2)][];
+        Arrays.fill(pages, initialPage);
+    }
+
+    @Override
+    short get(final long index) {
+        return pages[(int) (index >>> PageSizeLog2)][(int) index & PageMask];
+    }
+
+    @Override
+    void set(final long index, final short value) {
+        final int page = (int) (index >>> PageSizeLog2);
+        short[] records = pages[page];
+        if (records.length != pageLength) {
+            records = allocatePage(page);
+        }
+        records[(int) index & PageMask] = value;
+    }
+
+    /**
+     * Replaces a shared page with an own copy.
+     */
+    private short[] allocatePage(final int page) {
+        short[] records = freePages.pollFirst();
+        if (records == null) {
+            records = new short[pageLength];
+        }
+        System.arraycopy(pages[page], 0, records, 0, pageLength);
+        pages[page] = records;
+        if (writtenPagesCount == writtenPages.length) {
+            writtenPages = Arrays.copyOf(writtenPages, writtenPagesCount * 2);
+        }
+        writtenPages[writtenPagesCount++] = page;
+        return records;
+    }
+
+    @Override
+    void reset() {
+        for (int i = 0; i < writtenPagesCount; i++) {
+            freePages.addFirst(pages[writtenPages[i]]);
+            pages[writtenPages[i]] = initialPage;
+        }
+        writtenPagesCount = 0;
+        if (template != null) {
+            for (final int page : template.pageNumbers) {
+                pages[page] = initialPage;
+            }
+            template = null;
+        }
+    }
+
+    /**
+     * Makes a template of the current state and primes the table with it.
+     */
+    Template freeze() {
+        final int[] pageNumbers = differingPages();
+        final short[][] templatePages = new short[pageNumbers.length][];
+        for (int i = 0; i < pageNumbers.length; i++) {
+            templatePages[i] = Arrays.copyOf(pages[pageNumbers[i]],
+                    pageLength + 1);
+        }
+        final Template frozen = new Template(pageNumbers, templatePages);
+        prime(frozen);
+        return frozen;
+    }
+
+    /**
+     * Resets the table to the state the template was made of.
+     */
+    void prime(final Template template) {
+        reset();
+        for (int i = 0; i < template.pageNumbers.length; i++) {
+            pages[template.pageNumbers[i]] = template.pages[i];
+        }
+        this.template = template;
+    }
+
+    /**
+     * Returns sorted numbers of written and template pages.
+     */
+    private int[] differingPages() {
+        final int[] pageNumbers = Arrays.copyOf(writtenPages,
+                writtenPagesCount + (template == null ? 0
+                : template.pageNumbers.length));
+        int count = writtenPagesCount;
+        if (template != null) {
+            for (final int page : template.pageNumbers) {
+                if (pages[page].length != pageLength) {
+                    pageNumbers[count++] = page;
+                }
+            }
+        }
+        final int[] result = Arrays.copyOf(pageNumbers, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    @Override
+    boolean fillSnapshotPage(final long page, final ByteBuffer buffer) {
+        final short[] records = pages[(int) page];
+        if (records == initialPage) {
+            return false;
+        }
+        buffer.clear();
+        for (int i = 0; i < pageLength; i++) {
+            buffer.putShort((short) (records[i] ^ initialValue));
+        }
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     * Only written and template pages can differ from the initial state, so
+     * only they are visited.
+     */
+    @Override
+    void save(final WritableByteChannel channel) throws IOException {
+        final int[] pageNumbers = differingPages();
+        final long[] sortedPages = new long[pageNumbers.length];
+        for (int i = 0; i < pageNumbers.length; i++) {
+            sortedPages[i] = pageNumbers[i];
+        }
+        save(channel, sortedPages);
+    }
+}
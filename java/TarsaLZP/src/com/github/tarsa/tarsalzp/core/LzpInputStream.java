@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import com.github.tarsa.tarsalzp.Options;
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Decompresses a single stream written by {@link Coder#encode} or
+ * {@link LzpOutputStream}. Symbols are decoded directly into arrays passed
+ * to read methods. Compressed input is read in bulk, so by default bytes
+ * following the compressed stream are consumed too. Exact positioning can
+ * be requested at construction, so data following the stream can be read
+ * afterwards.
+ *
+ * @author Piotr Tarsa
+ */
+public final class LzpInputStream extends FilterInputStream {
+
+    private final Options options;
+    private final Decoder decoder;
+    private final ArrayOutputWindow output = new ArrayOutputWindow();
+    private final byte[] singleByte = new byte[1];
+    private boolean finished = false;
+
+    public LzpInputStream(final InputStream inputStream) throws IOException {
+        this(inputStream, Settings.Default);
+    }
+
+    public LzpInputStream(final InputStream inputStream,
+            final Settings settings) throws IOException {
+        this(inputStream, settings, false);
+    }
+
+    /**
+     * Reads the header immediately.
+     *
+     * @param exact if set then no bytes following the compressed stream are
+     * consumed. That is cheap for streams supporting mark and reset, others
+     * are read byte by byte. Otherwise streams without mark support are
+     * buffered
+     */
+    public LzpInputStream(final InputStream inputStream,
+            final Settings settings, final boolean exact) throws IOException {
+        super(exact || inputStream.markSupported() ? inputStream
+                : new BufferedInputStream(inputStream,
+                InputWindow.DefaultSize));
+        Coder.checkHeader(in);
+        final long packedOptions = BlockCoder.readLong(in);
+        if (packedOptions == Coder.BlockContainerMarker) {
+            throw new IOException("Multi-block containers are not supported "
+                    + "by streaming decoder.");
+        }
+        options = Coder.unpackOptions(packedOptions);
+        decoder = new Decoder(new StreamInputWindow(in,
+                InputWindow.DefaultSize, exact), output, options, settings);
+    }
+
+    public Options getOptions() {
+        return options;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length)
+            throws IOException {
+        if (offset < 0 || length < 0 || length > buffer.length - offset) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (finished) {
+            return -1;
+        }
+        if (length == 0) {
+            return 0;
+        }
+        output.buffer = ByteBuffer.wrap(buffer, offset, length);
+        final int decoded = (int) decoder.decode(length);
+        if (decoded < length) {
+            finished = true;
+        }
+        return decoded == 0 ? -1 : decoded;
+    }
+
+    @Override
+    public long skip(final long count) throws IOException {
+        final byte[] buffer = new byte[(int) Math.min(Math.max(count, 0),
+                OutputWindow.DefaultSize)];
+        long skipped = 0;
+        while (skipped < count) {
+            final int read = read(buffer, 0,
+                    (int) Math.min(buffer.length, count - skipped));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(final int readLimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("Mark and reset are not supported.");
+    }
+}
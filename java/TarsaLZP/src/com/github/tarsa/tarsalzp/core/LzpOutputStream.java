@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import com.github.tarsa.tarsalzp.Options;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses data written to it into the single stream format read by
+ * {@link Coder#decode} and {@link LzpInputStream}. Written arrays are
+ * encoded in place, without copying and without additional threads.
+ * Symbols are always encoded one by one, regardless of the engine chosen in
+ * settings.
+ *
+ * @author Piotr Tarsa
+ */
+public final class LzpOutputStream extends FilterOutputStream {
+
+    private final Encoder encoder;
+    private final BufferInputWindow input;
+    private final byte[] singleByte = new byte[1];
+    private boolean finished = false;
+
+    public LzpOutputStream(final OutputStream outputStream,
+            final Options options) throws IOException {
+        this(outputStream, options, Settings.Default);
+    }
+
+    /**
+     * Writes the header immediately.
+     */
+    public LzpOutputStream(final OutputStream outputStream,
+            final Options options, final Settings settings)
+            throws IOException {
+        super(outputStream);
+        BlockCoder.writeLong(outputStream, Coder.HeaderValue);
+        BlockCoder.writeLong(outputStream, options.toPacked());
+        input = new BufferInputWindow(ByteBuffer.allocate(0));
+        encoder = new Encoder(input, new StreamOutputWindow(outputStream,
+                OutputWindow.DefaultSize), options, settings.withEngine(
+                Encoder.Engine.Sequential));
+    }
+
+    private void checkNotFinished() throws IOException {
+        if (finished) {
+            throw new IOException("Stream already finished.");
+        }
+    }
+
+    @Override
+    public void write(final int octet) throws IOException {
+        singleByte[0] = (byte) octet;
+        write(singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] buffer, final int offset, final int length)
+            throws IOException {
+        checkNotFinished();
+        input.buffer = ByteBuffer.wrap(buffer, offset, length);
+        encoder.encodeRemaining();
+    }
+
+    /**
+     * Passes complete bytes encoded so far to the underlying stream. Range
+     * coder keeps a few bytes until the stream is finished and bytes of an
+     * unfinished stored block are kept until it's decided.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkNotFinished();
+        encoder.output.flush();
+        out.flush();
+    }
+
+    /**
+     * Ends the compressed stream without closing the underlying one.
+     */
+    public void finish() throws IOException {
+        if (!finished) {
+            encoder.finish();
+            finished = true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Input window mapping consecutive regions of a file, starting at the
+ * current position of the channel. Channel position is moved to the
+ * beginning of every newly mapped region and, on finish, just after the
+ * last consumed byte.
+ *
+ * @author Piotr Tarsa
+ */
+final class MappedInputWindow extends InputWindow {
+
+    static final long RegionSize = 64 << 20;
+    private final FileChannel channel;
+    private long regionStart;
+
+    MappedInputWindow(final FileChannel channel) throws IOException {
+        this.channel = channel;
+        regionStart = channel.position();
+        buffer = ByteBuffer.allocate(0);
+    }
+
+    @Override
+    boolean refill() throws IOException {
+        regionStart += buffer.limit();
+        final long remaining = channel.size() - regionStart;
+        if (remaining <= 0) {
+            buffer = ByteBuffer.allocate(0);
+            return false;
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, regionStart,
+                Math.min(remaining, RegionSize));
+        channel.position(regionStart);
+        return true;
+    }
+
+    @Override
+    void finish() throws IOException {
+        channel.position(regionStart + buffer.position());
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import com.github.tarsa.tarsalzp.Options;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Model state trained on sample data. Coders primed with a dictionary start
+ * from the trained state instead of the initial one, so even small inputs
+ * similar to the samples are predicted well from their first bytes. Data
+ * encoded with a dictionary can be decoded only with the same dictionary.
+ * <p>
+ * LZP tables are stored sparsely, so dictionaries take space proportional
+ * to the part of LZP tables touched during training. Coders with lazy
+ * tables, like those of the default {@link CoderPool}, share trained LZP
+ * tables read only and copy only the pages they write to, so priming them
+ * costs about as much as resetting them. Coders with eager tables restore
+ * trained records on every priming. Dictionaries can be shared by threads.
+ *
+ * @author Piotr Tarsa
+ */
+public final class ModelDictionary {
+
+    /**
+     * Channel reading a snapshot without copying it.
+     */
+    private static final class SnapshotChannel
+            implements ReadableByteChannel {
+
+        private final ByteBuffer snapshot;
+
+        SnapshotChannel(final ByteBuffer snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public int read(final ByteBuffer destination) {
+            if (!snapshot.hasRemaining()) {
+                return -1;
+            }
+            final int length = Math.min(snapshot.remaining(),
+                    destination.remaining());
+            final ByteBuffer source = snapshot.duplicate();
+            source.limit(source.position() + length);
+            destination.put(source);
+            snapshot.position(snapshot.position() + length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+    static final int SnapshotCoderKind = 0;
+    private final Options options;
+    private final byte[] snapshot;
+    private volatile LazyHeapShortTable.Template[] templates = null;
+
+    private ModelDictionary(final Options options, final byte[] snapshot) {
+        this.options = options;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Builds a dictionary from the model state reached after encoding given
+     * samples.
+     */
+    public static ModelDictionary train(final ByteBuffer samples,
+            final Options options) throws IOException {
+        final Encoder encoder = new Encoder(new BufferInputWindow(
+                samples.duplicate()), new DiscardingOutputWindow(
+                OutputWindow.DefaultSize), options,
+                Settings.Default.withLazyTables(true));
+        Coder.doEncode(encoder, null, Long.MAX_VALUE);
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        encoder.saveSnapshot(Channels.newChannel(outputStream),
+                SnapshotCoderKind, ByteBuffer.allocate(0));
+        return new ModelDictionary(options, outputStream.toByteArray());
+    }
+
+    /**
+     * Reads a dictionary written by {@link #writeTo}.
+     */
+    public static ModelDictionary readFrom(final InputStream inputStream)
+            throws IOException {
+        final long length = BlockCoder.readLong(inputStream);
+        if (length < 16 || length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid dictionary.");
+        }
+        final byte[] snapshot = new byte[(int) length];
+        BlockCoder.readFully(inputStream, snapshot);
+        final ByteBuffer header = ByteBuffer.wrap(snapshot);
+        if (header.getLong() != Common.SnapshotHeaderValue) {
+            throw new IOException("Invalid dictionary.");
+        }
+        final Options options = Options.fromPacked(header.getLong());
+        if (options == null) {
+            throw new IOException("Invalid dictionary.");
+        }
+        return new ModelDictionary(options, snapshot);
+    }
+
+    /**
+     * Writes the length of the snapshot followed by the snapshot itself.
+     */
+    public void writeTo(final OutputStream outputStream) throws IOException {
+        BlockCoder.writeLong(outputStream, snapshot.length);
+        outputStream.write(snapshot);
+    }
+
+    public Options getOptions() {
+        return options;
+    }
+
+    /**
+     * Returns templates of lazy LZP tables made by the first coder primed
+     * with this dictionary, or null if there was none yet.
+     */
+    LazyHeapShortTable.Template[] getTemplates() {
+        return templates;
+    }
+
+    void setTemplates(final LazyHeapShortTable.Template[] templates) {
+        this.templates = templates;
+    }
+
+    /**
+     * Returns a channel over the snapshot of the trained model.
+     */
+    ReadableByteChannel openSnapshot() {
+        return new SnapshotChannel(ByteBuffer.wrap(snapshot));
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import com.github.tarsa.tarsalzp.Options;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Searches for options giving the smallest output on a sample of the input.
+ * Candidates are evaluated concurrently by encoders that only sum up coding
+ * costs, so no compressed data is produced.
+ * <p>
+ * Mask sizes are not tuned on the sample, as a sample can't show gains from
+ * tables bigger than itself. Instead the biggest masks that are useful for
+ * the whole input and fit in the memory budget are chosen up front. Context
+ * lengths and literal coder order are tuned first and then literal coder
+ * adaptation parameters are tuned for the best context lengths.
+ *
+ * @author Piotr Tarsa
+ */
+public final class OptionsTuner {
+
+    public static final int DefaultSampleSize = 4 << 20;
+    private static final int SampleSlices = 8;
+    private static final int[] LzpLowContextLengths = {3, 4, 5, 6};
+    private static final int[] LzpHighContextLengths = {6, 8};
+    private static final int[] LiteralCoderOrders = {1, 2};
+    private static final int[] LiteralCoderSteps = {15, 30, 60, 120};
+    private static final int[] LiteralCoderLimits = {4000, 8000, 16000,
+        30000};
+
+    private OptionsTuner() {
+    }
+
+    /**
+     * Outcome of evaluating options on the sample.
+     */
+    public static final class Result {
+
+        private final Options options;
+        private final long estimatedSize;
+        private final long memoryUsage;
+        private final double throughput;
+
+        Result(final Options options, final long estimatedSize,
+                final long memoryUsage, final double throughput) {
+            this.options = options;
+            this.estimatedSize = estimatedSize;
+            this.memoryUsage = memoryUsage;
+            this.throughput = throughput;
+        }
+
+        public Options getOptions() {
+            return options;
+        }
+
+        /**
+         * Estimated size of encoded sample including the header, in bytes.
+         */
+        public long getEstimatedSize() {
+            return estimatedSize;
+        }
+
+        /**
+         * Memory taken by model tables of a single coder, in bytes.
+         */
+        public long getMemoryUsage() {
+            return memoryUsage;
+        }
+
+        /**
+         * Modelling speed measured in CPU time of the evaluating thread, in
+         * bytes per second. Range coding isn't included.
+         */
+        public double getThroughput() {
+            return throughput;
+        }
+    }
+
+    private static final Comparator<Result> SmallestFirst =
+            new Comparator<Result>() {
+
+                @Override
+                public int compare(final Result left, final Result right) {
+                    if (left.estimatedSize != right.estimatedSize) {
+                        return left.estimatedSize < right.estimatedSize
+                                ? -1 : 1;
+                    }
+                    return Double.compare(right.throughput, left.throughput);
+                }
+            };
+
+    /**
+     * Memory taken by model tables of a single coder with given options and
+     * settings, in bytes.
+     */
+    public static long memoryUsage(final Options options,
+            final Settings settings) {
+        final boolean onlyLowLzp = options.getLzpLowContextLength()
+                == options.getLzpHighContextLength()
+                && options.getLzpLowMaskSize() == options.getLzpHighMaskSize();
+        final long lzpTables = (2L << options.getLzpLowMaskSize())
+                + (onlyLowLzp ? 0 : 2L << options.getLzpHighMaskSize());
+        final long contexts = 1L << 8 * options.getLiteralCoderOrder();
+        final long literalCoder = contexts * (512 + 2 + 4)
+                + contexts * (settings.getLiteralCoderLayout()
+                == LiteralCoderLayout.Fenwick ? 512 : 32);
+        return lzpTables + literalCoder;
+    }
+
+    /**
+     * Reads a sample made of equally spaced slices of the file. Whole file
+     * is read if it isn't bigger than the sample size.
+     */
+    public static ByteBuffer readSample(final RandomAccessFile file,
+            final int sampleSize) throws IOException {
+        final long length = file.length();
+        if (length <= sampleSize) {
+            final byte[] sample = new byte[(int) length];
+            file.seek(0);
+            file.readFully(sample);
+            return ByteBuffer.wrap(sample);
+        }
+        final byte[] sample = new byte[sampleSize];
+        final int sliceSize = sampleSize / SampleSlices;
+        int filled = 0;
+        for (int slice = 0; slice < SampleSlices; slice++) {
+            final int currentSize = slice == SampleSlices - 1
+                    ? sampleSize - filled : sliceSize;
+            file.seek((length - currentSize) * slice / (SampleSlices - 1));
+            file.readFully(sample, filled, currentSize);
+            filled += currentSize;
+        }
+        return ByteBuffer.wrap(sample);
+    }
+
+    /**
+     * Chooses mask sizes for the input length. The high order table is kept
+     * eight times bigger than the low order one, like in default options.
+     * Masks are lowered until tables fit in the memory budget.
+     *
+     * @return options with new mask sizes or null if even the smallest
+     * tables don't fit
+     */
+    static Options fitMasks(final Options options, final Settings settings,
+            final long inputLength, final long memoryBudget) {
+        long lzpHighMaskSize = Math.max(15, Math.min(34,
+                65 - Long.numberOfLeadingZeros(Math.max(1, inputLength))));
+        while (lzpHighMaskSize >= 15) {
+            final Options candidate = withMasks(options,
+                    Math.max(15, lzpHighMaskSize - 3), lzpHighMaskSize);
+            if (candidate != null
+                    && memoryUsage(candidate, settings) <= memoryBudget) {
+                return candidate;
+            }
+            lzpHighMaskSize--;
+        }
+        return null;
+    }
+
+    private static Options withMasks(final Options options,
+            final long lzpLowMaskSize, final long lzpHighMaskSize) {
+        return create(options, options.getLzpLowContextLength(),
+                lzpLowMaskSize, options.getLzpHighContextLength(),
+                lzpHighMaskSize, options.getLiteralCoderOrder(),
+                options.getLiteralCoderStep(),
+                options.getLiteralCoderLimit());
+    }
+
+    private static Options create(final Options flags,
+            final long lzpLowContextLength, final long lzpLowMaskSize,
+            final long lzpHighContextLength, final long lzpHighMaskSize,
+            final long literalCoderOrder, final long literalCoderStep,
+            final long literalCoderLimit) {
+        final Options options = Options.create(lzpLowContextLength,
+                lzpLowMaskSize, lzpHighContextLength, lzpHighMaskSize,
+                literalCoderOrder, flags.getLiteralCoderInit(),
+                literalCoderStep, literalCoderLimit);
+        return options == null ? null : options
+                .withMultiplicativeHash(flags.isMultiplicativeHash())
+                .withChecksum(flags.hasChecksum())
+                .withStoredBlocks(flags.hasStoredBlocks());
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Evaluation">
+    private static final class EvaluationTask implements Callable<Result> {
+
+        private final ByteBuffer sample;
+        private final Options options;
+        private final Settings settings;
+
+        EvaluationTask(final ByteBuffer sample, final Options options,
+                final Settings settings) {
+            this.sample = sample;
+            this.options = options;
+            this.settings = settings;
+        }
+
+        @Override
+        public Result call() throws IOException {
+            final Encoder encoder = Encoder.estimator(new BufferInputWindow(
+                    sample.duplicate()), options, settings);
+            final long startTime = threadTime();
+            Coder.doEncode(encoder, null, Long.MAX_VALUE);
+            final long time = Math.max(1, threadTime() - startTime);
+            return new Result(options, 16 + encoder.getEstimatedSize()
+                    + (options.hasChecksum() ? 4 : 0),
+                    memoryUsage(options, settings),
+                    sample.remaining() * 1e9 / time);
+        }
+    }
+
+    private static long threadTime() {
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean.isCurrentThreadCpuTimeSupported()) {
+            return threadMXBean.getCurrentThreadCpuTime();
+        } else {
+            return System.nanoTime();
+        }
+    }
+
+    private static List<Result> evaluate(final ByteBuffer sample,
+            final List<Options> candidates, final Settings settings,
+            final ExecutorService executor) throws IOException {
+        final List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        for (final Options candidate : candidates) {
+            futures.add(executor.submit(new EvaluationTask(sample, candidate,
+                    settings)));
+        }
+        final List<Result> results = new ArrayList<Result>();
+        for (final Future<Result> future : futures) {
+            results.add(BlockCoder.await(future));
+        }
+        return results;
+    }
+
+    private static Result best(final List<Result> results,
+            final double minThroughput) {
+        Result best = null;
+        for (final Result result : results) {
+            if (result.throughput >= minThroughput && (best == null
+                    || SmallestFirst.compare(result, best) < 0)) {
+                best = result;
+            }
+        }
+        return best;
+    }// </editor-fold>
+
+    /**
+     * Evaluates candidate options on the sample.
+     *
+     * @param sample data to evaluate options on
+     * @param inputLength length of whole input, used for choosing masks
+     * @param base options providing initial literal coder parameters and
+     * flags
+     * @param settings settings of evaluating encoders
+     * @param memoryBudget maximum memory taken by model tables of a single
+     * coder, in bytes
+     * @param minThroughput minimum modelling speed in bytes per second
+     * @param threadsNumber number of candidates evaluated concurrently, every
+     * one allocating its own model
+     * @return evaluated options satisfying both budgets, best first, or an
+     * empty list if none satisfy them
+     */
+    public static List<Result> tune(final ByteBuffer sample,
+            final long inputLength, final Options base,
+            final Settings settings, final long memoryBudget,
+            final double minThroughput, final int threadsNumber)
+            throws IOException {
+        if (threadsNumber <= 0) {
+            throw new IllegalArgumentException(
+                    "Threads number has to be positive.");
+        }
+        final Options fitted = fitMasks(base, settings, inputLength,
+                memoryBudget);
+        final List<Result> results = new ArrayList<Result>();
+        if (fitted == null) {
+            return results;
+        }
+        final ExecutorService executor =
+                Executors.newFixedThreadPool(threadsNumber);
+        try {
+            final List<Options> shapes = new ArrayList<Options>();
+            for (final int lzpLowContextLength : LzpLowContextLengths) {
+                for (final int lzpHighContextLength : LzpHighContextLengths) {
+                    for (final int literalCoderOrder : LiteralCoderOrders) {
+                        final Options candidate = create(fitted,
+                                lzpLowContextLength,
+                                fitted.getLzpLowMaskSize(),
+                                lzpHighContextLength,
+                                fitted.getLzpHighMaskSize(),
+                                literalCoderOrder,
+                                fitted.getLiteralCoderStep(),
+                                fitted.getLiteralCoderLimit());
+                        if (candidate != null && memoryUsage(candidate,
+                                settings) <= memoryBudget) {
+                            shapes.add(candidate);
+                        }
+                    }
+                }
+            }
+            results.addAll(evaluate(sample, shapes, settings, executor));
+            final Result bestShape = best(results, minThroughput);
+            if (bestShape != null) {
+                final Options shape = bestShape.options;
+                final List<Options> literalCoders = new ArrayList<Options>();
+                for (final int literalCoderStep : LiteralCoderSteps) {
+                    for (final int literalCoderLimit : LiteralCoderLimits) {
+                        final Options candidate = create(shape,
+                                shape.getLzpLowContextLength(),
+                                shape.getLzpLowMaskSize(),
+                                shape.getLzpHighContextLength(),
+                                shape.getLzpHighMaskSize(),
+                                shape.getLiteralCoderOrder(),
+                                literalCoderStep, literalCoderLimit);
+                        if (candidate != null && !candidate.equals(shape)) {
+                            literalCoders.add(candidate);
+                        }
+                    }
+                }
+                results.addAll(evaluate(sample, literalCoders, settings,
+                        executor));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        final List<Result> accepted = new ArrayList<Result>();
+        for (final Result result : results) {
+            if (result.throughput >= minThroughput) {
+                accepted.add(result);
+            }
+        }
+        Collections.sort(accepted, SmallestFirst);
+        return accepted;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import com.github.tarsa.tarsalzp.Options;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access to data compressed into a multi-block container. Block
+ * index stored at the end of the container is used to find and decode
+ * only the block holding requested data. Recently decoded block is kept,
+ * so sequential reads of small ranges decode every block once.
+ * <p>
+ * Compressed data has to span from the position of the channel at creation
+ * to its end. Single streams are accepted too, but they have no index, so
+ * they are decoded entirely on first access. Instances are not thread safe.
+ *
+ * @author Piotr Tarsa
+ */
+public final class SeekableDecoder {
+
+    private final FileChannel channel;
+    private final Settings settings;
+    private final Options options;
+    private final long blockSize;
+    private final long[] frameOffsets;
+    private final long start;
+    private long length;
+    private Decoder decoder;
+    private ByteBuffer compressed = ByteBuffer.allocate(0);
+    private ByteBuffer block = ByteBuffer.allocate(0);
+    private int blockIndex = -1;
+
+    public SeekableDecoder(final FileChannel channel) throws IOException {
+        this(channel, Settings.Default);
+    }
+
+    /**
+     * Reads the header and block index immediately.
+     */
+    public SeekableDecoder(final FileChannel channel, final Settings settings)
+            throws IOException {
+        this.channel = channel;
+        this.settings = settings;
+        start = channel.position();
+        final ByteBuffer preamble = readAt(start, 16);
+        if (preamble.getLong() != Coder.HeaderValue) {
+            throw new IOException("Wrong file header. Probably not a "
+                    + "compressed file.");
+        }
+        final long packedOptions = preamble.getLong();
+        if (packedOptions != Coder.BlockContainerMarker) {
+            options = Coder.unpackOptions(packedOptions);
+            blockSize = 0;
+            frameOffsets = new long[]{16};
+            length = -1;
+            return;
+        }
+        final ByteBuffer parameters = readAt(start + 16, 16);
+        options = Coder.unpackOptions(parameters.getLong());
+        blockSize = parameters.getLong();
+        if (blockSize <= 0 || blockSize > Integer.MAX_VALUE) {
+            throw new IOException("Invalid block size.");
+        }
+        final long containerLength = channel.size() - start;
+        final long indexOffset = readAt(start + containerLength - 8, 8)
+                .getLong();
+        if (indexOffset < BlockCoder.PreambleLength
+                || indexOffset > containerLength - 16) {
+            throw new IOException("Invalid block index.");
+        }
+        final long blocksNumber = readAt(start + indexOffset, 8).getLong();
+        if (blocksNumber <= 0
+                || blocksNumber != (containerLength - indexOffset - 16) / 8
+                || (containerLength - indexOffset - 16) % 8 != 0) {
+            throw new IOException("Invalid block index.");
+        }
+        frameOffsets = new long[(int) blocksNumber];
+        final ByteBuffer index = readAt(start + indexOffset + 8,
+                frameOffsets.length * 8);
+        for (int i = 0; i < frameOffsets.length; i++) {
+            frameOffsets[i] = index.getLong();
+            if (frameOffsets[i] < BlockCoder.PreambleLength
+                    || frameOffsets[i] > indexOffset
+                    - 2 * BlockCoder.FrameHeaderLength
+                    || (i > 0 && frameOffsets[i] <= frameOffsets[i - 1])) {
+                throw new IOException("Invalid block index.");
+            }
+        }
+        final int lastLength = readAt(start + frameOffsets[
+                frameOffsets.length - 1], 4).getInt();
+        if (lastLength <= 0 || lastLength > blockSize) {
+            throw new IOException("Invalid block frame.");
+        }
+        length = (frameOffsets.length - 1) * blockSize + lastLength;
+    }
+
+    public Options getOptions() {
+        return options;
+    }
+
+    /**
+     * Returns the length of uncompressed data.
+     */
+    public long length() throws IOException {
+        if (length == -1) {
+            loadBlock(0);
+        }
+        return length;
+    }
+
+    /**
+     * Decodes data starting at given uncompressed position into the
+     * destination buffer, until it is full or the end of data is reached.
+     *
+     * @return number of bytes put into the destination or -1 if the
+     * position is at or beyond the end of data
+     */
+    public int read(final long position, final ByteBuffer destination)
+            throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException(
+                    "Position cannot be negative.");
+        }
+        if (position >= length()) {
+            return -1;
+        }
+        long current = position;
+        while (destination.hasRemaining() && current < length) {
+            final int index = blockSize == 0 ? 0 : (int) (current / blockSize);
+            loadBlock(index);
+            final ByteBuffer source = block.duplicate();
+            source.position((int) (current - index * blockSize));
+            if (source.remaining() > destination.remaining()) {
+                source.limit(source.position() + destination.remaining());
+            }
+            current += source.remaining();
+            destination.put(source);
+        }
+        return (int) (current - position);
+    }
+
+    private void loadBlock(final int index) throws IOException {
+        if (index == blockIndex) {
+            return;
+        }
+        blockIndex = -1;
+        if (blockSize == 0) {
+            compressed = readAt(start + 16, channel.size() - start - 16);
+            block = Coder.decodeRaw(compressed, options, settings);
+            length = block.remaining();
+        } else {
+            final long frameOffset = frameOffsets[index];
+            final ByteBuffer frameHeader = readAt(start + frameOffset,
+                    BlockCoder.FrameHeaderLength);
+            final int uncompressedLength = frameHeader.getInt();
+            final int compressedLength = frameHeader.getInt();
+            if (uncompressedLength <= 0 || uncompressedLength > blockSize
+                    || (index < frameOffsets.length - 1
+                    && uncompressedLength != blockSize)
+                    || compressedLength <= 0 || compressedLength
+                    > BlockCoder.maxCompressedLength(uncompressedLength)) {
+                throw new IOException("Invalid block frame.");
+            }
+            compressed = readAt(start + frameOffset
+                    + BlockCoder.FrameHeaderLength, compressedLength);
+            decodeBlock(uncompressedLength);
+        }
+        blockIndex = index;
+    }
+
+    private void decodeBlock(final int uncompressedLength)
+            throws IOException {
+        if (block.capacity() <= uncompressedLength) {
+            block = ByteBuffer.allocate((int) Math.min(blockSize + 1,
+                    Integer.MAX_VALUE));
+        }
+        block.clear();
+        final InputWindow input = new BufferInputWindow(compressed);
+        final OutputWindow output = new ArrayOutputWindow();
+        output.buffer = block;
+        if (decoder == null) {
+            decoder = new Decoder(input, output, options, settings);
+        } else {
+            decoder.reset(input, output);
+        }
+        final long decoded = decoder.decode(uncompressedLength + 1L);
+        block.flip();
+        if (decoded != uncompressedLength || compressed.hasRemaining()) {
+            throw new IOException("Corrupted block.");
+        }
+    }
+
+    /**
+     * Reads given number of bytes at absolute position of the channel,
+     * reusing the compressed data buffer.
+     */
+    private ByteBuffer readAt(final long position, final long count)
+            throws IOException {
+        if (count > Integer.MAX_VALUE - 8) {
+            throw new IOException("Block too big.");
+        }
+        if (compressed.capacity() < count) {
+            compressed = ByteBuffer.allocate((int) count);
+        }
+        compressed.clear();
+        compressed.limit((int) count);
+        while (compressed.hasRemaining()) {
+            if (channel.read(compressed, position + compressed.position())
+                    == -1) {
+                throw new EOFException("Unexpected end of file.");
+            }
+        }
+        compressed.flip();
+        return compressed;
+    }
+}
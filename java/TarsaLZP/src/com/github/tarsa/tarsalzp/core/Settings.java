@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import com.github.tarsa.tarsalzp.Options;
+
+/**
+ * Runtime settings of the coders. Unlike options, settings do not affect
+ * the compressed stream.
+ *
+ * @author Piotr Tarsa
+ */
+public final class Settings {
+
+    public static final Settings Default = new Settings(
+            Encoder.Engine.Sequential, TableStorage.Heap, false,
+            LiteralCoderLayout.Grouped);
+    private final Encoder.Engine engine;
+    private final TableStorage tableStorage;
+    private final boolean lazyTables;
+    private final LiteralCoderLayout literalCoderLayout;
+
+    private Settings(final Encoder.Engine engine,
+            final TableStorage tableStorage, final boolean lazyTables,
+            final LiteralCoderLayout literalCoderLayout) {
+        if (engine == null || tableStorage == null
+                || literalCoderLayout == null) {
+            throw new NullPointerException();
+        }
+        this.engine = engine;
+        this.tableStorage = tableStorage;
+        this.lazyTables = lazyTables;
+        this.literalCoderLayout = literalCoderLayout;
+    }
+
+    public Encoder.Engine getEngine() {
+        return engine;
+    }
+
+    public TableStorage getTableStorage() {
+        return tableStorage;
+    }
+
+    /**
+     * Whether heap LZP tables are allocated and initialized page by page on
+     * first write. Makes startup and reset cost independent of table size
+     * at the price of noticeably slower table access, so it pays off only
+     * when inputs are small compared to the tables or coders are reset
+     * often.
+     */
+    public boolean isLazyTables() {
+        return lazyTables;
+    }
+
+    /**
+     * Default settings for coding an input of known length. Lazy tables are
+     * chosen when the input is shorter than the bigger LZP table, as then
+     * initializing the tables would dominate coding time.
+     */
+    static Settings defaultFor(final Options options, final long inputLength) {
+        final long tableLength = 1L << Math.max(options.getLzpLowMaskSize(),
+                options.getLzpHighMaskSize());
+        return inputLength < tableLength ? Default.withLazyTables(true)
+                : Default;
+    }
+
+    public LiteralCoderLayout getLiteralCoderLayout() {
+        return literalCoderLayout;
+    }
+
+    public Settings withEngine(final Encoder.Engine engine) {
+        return new Settings(engine, tableStorage, lazyTables,
+                literalCoderLayout);
+    }
+
+    public Settings withTableStorage(final TableStorage tableStorage) {
+        return new Settings(engine, tableStorage, lazyTables,
+                literalCoderLayout);
+    }
+
+    public Settings withLazyTables(final boolean lazyTables) {
+        return new Settings(engine, tableStorage, lazyTables,
+                literalCoderLayout);
+    }
+
+    public Settings withLiteralCoderLayout(
+            final LiteralCoderLayout literalCoderLayout) {
+        return new Settings(engine, tableStorage, lazyTables,
+                literalCoderLayout);
+    }
+
+    @Override
+    public String toString() {
+        return "Settings[" + "engine=" + engine
+                + ", tableStorage=" + tableStorage
+                + ", lazyTables=" + lazyTables
+                + ", literalCoderLayout=" + literalCoderLayout + ']';
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Table of 16-bit records indexed by long, so it can exceed the size limit
+ * of a Java array.
+ * <p>
+ * Snapshot of a table is a sequence of runs covering records which differ
+ * from the initial state, each consisting of index of the first record
+ * (8 bytes, big endian), number of records (4 bytes, big endian) and the
+ * records xored with the initial value (little endian), followed by index
+ * -1. Runs are sparse, so snapshots of tables written at scattered places,
+ * like after training on a small sample, stay small.
+ *
+ * @author Piotr Tarsa
+ */
+abstract class ShortTable {
+
+    static final int SnapshotPageSizeLog2 = 9;
+    static final int SnapshotPageSize = 1 << SnapshotPageSizeLog2;
+    static final long SnapshotEnd = -1;
+    /**
+     * Longest run of initial records kept inside a snapshot run. It costs
+     * as much as the header of a new run.
+     */
+    private static final int MaxRunGap = 6;
+    private static final int MaxRunLength = 1 << 16;
+    final long size;
+    final short initialValue;
+
+    static ShortTable allocate(final long size, final short initialValue,
+            final TableStorage storage, final boolean lazy) {
+        switch (storage) {
+            case Heap:
+                return lazy ? new LazyHeapShortTable(size, initialValue)
+                        : new HeapShortTable(size, initialValue);
+            case OffHeap:
+                return new DirectShortTable(size, initialValue);
+            default:
+                throw new IllegalArgumentException("Unknown table storage.");
+        }
+    }
+
+    ShortTable(final long size, final short initialValue) {
+        this.size = size;
+        this.initialValue = initialValue;
+    }
+
+    abstract short get(final long index);
+
+    abstract void set(final long index, final short value);
+
+    /**
+     * Brings all records back to the initial value.
+     */
+    abstract void reset();
+
+    // <editor-fold defaultstate="collapsed" desc="Snapshots">
+    /**
+     * Collects records of consecutive pages into runs and writes them out.
+     */
+    private static final class SnapshotWriter {
+
+        private final WritableByteChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(12);
+        private final ByteBuffer run = ByteBuffer.allocate(MaxRunLength * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        private long runStart = -1;
+        private long runEnd = -1;
+
+        SnapshotWriter(final WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Adds records of the page, which has to follow previous pages.
+         */
+        void putPage(final long page, final ByteBuffer records)
+                throws IOException {
+            final long first = page << SnapshotPageSizeLog2;
+            for (int i = 0; i < SnapshotPageSize; i++) {
+                final short record = records.getShort(i * 2);
+                if (record == 0) {
+                    continue;
+                }
+                final long index = first + i;
+                if (runStart != -1 && (index - runEnd > MaxRunGap
+                        || index + 1 - runStart > MaxRunLength)) {
+                    flush();
+                }
+                if (runStart == -1) {
+                    runStart = index;
+                } else {
+                    for (long gap = runEnd; gap < index; gap++) {
+                        run.putShort((short) 0);
+                    }
+                }
+                run.putShort(record);
+                runEnd = index + 1;
+            }
+        }
+
+        private void flush() throws IOException {
+            header.clear();
+            header.putLong(runStart).putInt((int) (runEnd - runStart)).flip();
+            BlockCoder.writeFully(channel, header);
+            run.flip();
+            BlockCoder.writeFully(channel, run);
+            run.clear();
+            runStart = -1;
+        }
+
+        void finish() throws IOException {
+            if (runStart != -1) {
+                flush();
+            }
+            header.clear();
+            header.putLong(SnapshotEnd).flip();
+            BlockCoder.writeFully(channel, header);
+        }
+    }
+
+    static ByteBuffer allocateSnapshotPage() {
+        return ByteBuffer.allocate(SnapshotPageSize * 2).order(
+                ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Writes records of a page xored with the initial value into the
+     * snapshot page buffer.
+     *
+     * @return false if all records of the page have the initial value
+     */
+    boolean fillSnapshotPage(final long page, final ByteBuffer buffer) {
+        buffer.clear();
+        boolean written = false;
+        final long first = page << SnapshotPageSizeLog2;
+        for (int i = 0; i < SnapshotPageSize; i++) {
+            final short value = (short) (get(first + i) ^ initialValue);
+            written |= value != 0;
+            buffer.putShort(value);
+        }
+        buffer.flip();
+        return written;
+    }
+
+    /**
+     * Writes given pages, in increasing order. Pages not listed have to be
+     * in the initial state.
+     */
+    void save(final WritableByteChannel channel, final long[] pages)
+            throws IOException {
+        final SnapshotWriter writer = new SnapshotWriter(channel);
+        final ByteBuffer buffer = allocateSnapshotPage();
+        for (final long page : pages) {
+            if (fillSnapshotPage(page, buffer)) {
+                writer.putPage(page, buffer);
+            }
+        }
+        writer.finish();
+    }
+
+    /**
+     * Writes runs of records which differ from the initial state.
+     */
+    void save(final WritableByteChannel channel) throws IOException {
+        final SnapshotWriter writer = new SnapshotWriter(channel);
+        final ByteBuffer buffer = allocateSnapshotPage();
+        final long pagesNumber = size >>> SnapshotPageSizeLog2;
+        for (long page = 0; page < pagesNumber; page++) {
+            if (fillSnapshotPage(page, buffer)) {
+                writer.putPage(page, buffer);
+            }
+        }
+        writer.finish();
+    }
+
+    /**
+     * Sets records of a run read from the snapshot. Records are xored with
+     * the initial value and the table is in the initial state.
+     */
+    void restoreRun(final long first, final ByteBuffer records) {
+        for (int i = 0; records.hasRemaining(); i++) {
+            final short value = records.getShort();
+            if (value != 0) {
+                set(first + i, (short) (value ^ initialValue));
+            }
+        }
+    }
+
+    /**
+     * Resets the table and reads runs written by save.
+     */
+    void restore(final ReadableByteChannel channel) throws IOException {
+        reset();
+        final ByteBuffer header = ByteBuffer.allocate(12);
+        final ByteBuffer run = ByteBuffer.allocate(MaxRunLength * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        while (true) {
+            header.clear().limit(8);
+            BlockCoder.readFully(channel, header);
+            final long first = header.getLong(0);
+            if (first == SnapshotEnd) {
+                break;
+            }
+            header.limit(12);
+            BlockCoder.readFully(channel, header);
+            final int length = header.getInt(8);
+            if (first < 0 || length <= 0 || length > MaxRunLength
+                    || first > size - length) {
+                throw new IOException("Invalid snapshot run.");
+            }
+            run.clear().limit(length * 2);
+            BlockCoder.readFully(channel, run);
+            run.flip();
+            restoreRun(first, run);
+        }
+    }// </editor-fold>
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input window refilled from an input stream.
+ *
+ * @author Piotr Tarsa
+ */
+final class StreamInputWindow extends InputWindow {
+
+    private final InputStream inputStream;
+    private final byte[] array;
+    private final boolean exact;
+    private final int readLength;
+
+    /**
+     * @param exact if set then bytes that were not consumed are returned to
+     * the stream on finish - either using mark and reset or, if they are not
+     * supported, by reading the stream byte by byte
+     */
+    StreamInputWindow(final InputStream inputStream, final int size,
+            final boolean exact) {
+        this.inputStream = inputStream;
+        this.exact = exact;
+        readLength = exact && !inputStream.markSupported() ? 1 : size;
+        array = new byte[readLength];
+        buffer = ByteBuffer.wrap(array);
+        buffer.limit(0);
+    }
+
+    @Override
+    boolean refill() throws IOException {
+        if (exact && readLength > 1) {
+            inputStream.mark(readLength);
+        }
+        int read;
+        do {
+            read = inputStream.read(array, 0, readLength);
+        } while (read == 0);
+        if (read == -1) {
+            buffer.limit(0);
+            return false;
+        }
+        buffer.limit(read);
+        buffer.position(0);
+        return true;
+    }
+
+    @Override
+    void finish() throws IOException {
+        if (exact && buffer.hasRemaining()) {
+            final int consumed = buffer.position();
+            inputStream.reset();
+            int skipped = 0;
+            while (skipped < consumed) {
+                final long currentlySkipped = inputStream.skip(
+                        consumed - skipped);
+                if (currentlySkipped > 0) {
+                    skipped += currentlySkipped;
+                } else if (inputStream.read() != -1) {
+                    skipped++;
+                } else {
+                    throw new IOException("Unexpected end of file.");
+                }
+            }
+            buffer.limit(0);
+        }
+    }
+}
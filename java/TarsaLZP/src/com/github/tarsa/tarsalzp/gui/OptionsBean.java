@@ -54,6 +54,9 @@ public final class OptionsBean implements Serializable {
     private int literalCoderInit = 1;
     private int literalCoderStep = 60;
     private int literalCoderLimit = 30000;
+    private boolean multiplicativeHash = false;
+    private boolean checksum = false;
+    private boolean storedBlocks = false;
     public static final String PropValid = "valid";
     public static final String PropLzpLowContextLength =
             "lzpLowContextLength";
@@ -67,6 +70,9 @@ public final class OptionsBean implements Serializable {
     public static final String PropLiteralCoderInit = "literalCoderInit";
     public static final String PropLiteralCoderStep = "literalCoderStep";
     public static final String PropLiteralCoderLimit = "literalCoderLimit";
+    public static final String PropMultiplicativeHash = "multiplicativeHash";
+    public static final String PropChecksum = "checksum";
+    public static final String PropStoredBlocks = "storedBlocks";
 
     private class ValidatingListener implements PropertyChangeListener {
 
@@ -164,6 +170,33 @@ public final class OptionsBean implements Serializable {
         return literalCoderLimit;
     }
 
+    /**
+     * Get the value of multiplicativeHash
+     *
+     * @return the value of multiplicativeHash
+     */
+    public boolean isMultiplicativeHash() {
+        return multiplicativeHash;
+    }
+
+    /**
+     * Get the value of checksum
+     *
+     * @return the value of checksum
+     */
+    public boolean isChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Get the value of storedBlocks
+     *
+     * @return the value of storedBlocks
+     */
+    public boolean isStoredBlocks() {
+        return storedBlocks;
+    }
+
     /**
      * Set the valud of valid
      *
@@ -271,6 +304,42 @@ public final class OptionsBean implements Serializable {
                 oldLiteralCoderLimit, literalCoderLimit);
     }
 
+    /**
+     * Set the value of multiplicativeHash
+     *
+     * @param multiplicativeHash new value of multiplicativeHash
+     */
+    public void setMultiplicativeHash(final boolean multiplicativeHash) {
+        final boolean oldMultiplicativeHash = this.multiplicativeHash;
+        this.multiplicativeHash = multiplicativeHash;
+        propertyChangeSupport.firePropertyChange(PropMultiplicativeHash,
+                oldMultiplicativeHash, multiplicativeHash);
+    }
+
+    /**
+     * Set the value of checksum
+     *
+     * @param checksum new value of checksum
+     */
+    public void setChecksum(final boolean checksum) {
+        final boolean oldChecksum = this.checksum;
+        this.checksum = checksum;
+        propertyChangeSupport.firePropertyChange(PropChecksum, oldChecksum,
+                checksum);
+    }
+
+    /**
+     * Set the value of storedBlocks
+     *
+     * @param storedBlocks new value of storedBlocks
+     */
+    public void setStoredBlocks(final boolean storedBlocks) {
+        final boolean oldStoredBlocks = this.storedBlocks;
+        this.storedBlocks = storedBlocks;
+        propertyChangeSupport.firePropertyChange(PropStoredBlocks,
+                oldStoredBlocks, storedBlocks);
+    }
+
     /**
      * Add PropertyChangeListener.
      *
@@ -297,8 +366,15 @@ public final class OptionsBean implements Serializable {
      * @return immutable structure.
      */
     public Options toOptions() {
-        return Options.create(lzpLowContextLength, lzpLowMaskSize,
-                lzpHighContextLength, lzpHighMaskSize, literalCoderOrder, 
-                literalCoderInit, literalCoderStep, literalCoderLimit);
+        final Options options = Options.create(lzpLowContextLength,
+                lzpLowMaskSize, lzpHighContextLength, lzpHighMaskSize,
+                literalCoderOrder, literalCoderInit, literalCoderStep,
+                literalCoderLimit);
+        if (options == null) {
+            return null;
+        } else {
+            return options.withMultiplicativeHash(multiplicativeHash)
+                    .withChecksum(checksum).withStoredBlocks(storedBlocks);
+        }
     }
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2012, Piotr Tarsa
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this 
+ * list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the author nor the names of its contributors may be used 
+ * to endorse or promote products derived from this software without specific 
+ * prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.github.tarsa.tarsalzp.core;
+
+import com.github.tarsa.tarsalzp.Options;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks that all encoding entry points agree. Every corpus of the
+ * benchmarks is encoded with every preset, with and without stored blocks,
+ * through all entry points and engines, which have to produce the same
+ * stream decoding back to the corpus. Input and output are passed in odd
+ * sized pieces, so streams that depend on buffering show up.
+ * <p>
+ * Takes size of every generated corpus as an optional argument and exits
+ * with status 1 if any check fails.
+ *
+ * @author Piotr Tarsa
+ */
+final class EntryPointsCheck {
+
+    private static final int DefaultCorpusSize = 1 << 20;
+
+    private EntryPointsCheck() {
+    }
+
+    /**
+     * Input stream returning at most given number of bytes per read, so
+     * coders see input split in unusual places.
+     */
+    private static final class ChoppedInputStream extends FilterInputStream {
+
+        private final int pieceLength;
+
+        ChoppedInputStream(final byte[] data, final int pieceLength) {
+            super(new ByteArrayInputStream(data));
+            this.pieceLength = pieceLength;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset,
+                final int length) throws IOException {
+            return super.read(buffer, offset, Math.min(length, pieceLength));
+        }
+    }
+
+    /**
+     * Generates a corpus made of pieces of the other corpora, so coders
+     * switch between kinds of data.
+     */
+    private static byte[] generateMixed(final Benchmarks benchmarks,
+            final int corpusSize) {
+        final Random random = new Random(1);
+        final byte[][] sources = benchmarks.corpora.values().toArray(
+                new byte[0][]);
+        final byte[] result = new byte[corpusSize];
+        int position = 0;
+        while (position < corpusSize) {
+            final int length = Math.min(corpusSize - position,
+                    1 + random.nextInt(64 * 1024));
+            final byte[] source = sources[random.nextInt(sources.length)];
+            System.arraycopy(source, random.nextInt(source.length - length
+                    + 1), result, position, length);
+            position += length;
+        }
+        return result;
+    }
+
+    private static byte[] encodeMapped(final byte[] corpus,
+            final Options options) throws IOException {
+        final File file = File.createTempFile("tarsalzp", ".tmp");
+        try {
+            final RandomAccessFile inputFile = new RandomAccessFile(file,
+                    "rw");
+            try {
+                inputFile.write(corpus);
+                inputFile.seek(0);
+                final ByteArrayOutputStream output =
+                        new ByteArrayOutputStream();
+                Coder.encodeMapped(inputFile.getChannel(),
+                        Channels.newChannel(output), null, 10007, options,
+                        Settings.Default);
+                return output.toByteArray();
+            } finally {
+                inputFile.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static byte[] encodeIncrementally(final byte[] corpus,
+            final Options options) throws IOException {
+        final Encoder encoder = new Encoder(options, Settings.Default);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ByteBuffer destination = ByteBuffer.allocate(100);
+        int position = 0;
+        Encoder.Status status;
+        do {
+            final int length = Math.min(777, corpus.length - position);
+            final ByteBuffer source = ByteBuffer.wrap(corpus, position,
+                    length);
+            status = encoder.encode(source, destination,
+                    position + length == corpus.length);
+            position = source.position();
+            output.write(destination.array(), 0, destination.position());
+            destination.clear();
+        } while (status != Encoder.Status.Finished);
+        return output.toByteArray();
+    }
+
+    private static byte[] encodeWithOutputStream(final byte[] corpus,
+            final Options options) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final LzpOutputStream stream = new LzpOutputStream(output, options);
+        for (int i = 0; i < corpus.length; i += 333) {
+            stream.write(corpus, i, Math.min(333, corpus.length - i));
+        }
+        stream.close();
+        return output.toByteArray();
+    }
+
+    /**
+     * Runs all checks and prints their results.
+     *
+     * @return number of failed checks
+     */
+    private static int check(final PrintStream out, final int corpusSize)
+            throws IOException {
+        final Benchmarks benchmarks = new Benchmarks(corpusSize);
+        benchmarks.corpora.put("mixed", generateMixed(benchmarks, corpusSize));
+        final CoderPool pool = new CoderPool();
+        int failures = 0;
+        for (final Map.Entry<String, Options> preset
+                : benchmarks.presets.entrySet()) {
+            for (final boolean storedBlocks : new boolean[]{false, true}) {
+                final Options options = preset.getValue()
+                        .withStoredBlocks(storedBlocks);
+                for (final Map.Entry<String, byte[]> corpus
+                        : benchmarks.corpora.entrySet()) {
+                    final String name = preset.getKey()
+                            + (storedBlocks ? "+storedBlocks/" : "/")
+                            + corpus.getKey();
+                    final byte[] data = corpus.getValue();
+                    final Map<String, byte[]> streams =
+                            new LinkedHashMap<String, byte[]>();
+                    for (final Encoder.Engine engine
+                            : Encoder.Engine.values()) {
+                        streams.put("engine " + engine, toArray(Coder.encode(
+                                ByteBuffer.wrap(data), options,
+                                Settings.Default.withEngine(engine))));
+                    }
+                    ByteArrayOutputStream output = new ByteArrayOutputStream();
+                    Coder.encode(new ChoppedInputStream(data, 1000), output,
+                            null, 10007, options);
+                    streams.put("stream", output.toByteArray());
+                    streams.put("mapped", encodeMapped(data, options));
+                    streams.put("pool", pool.encode(data, options));
+                    output = new ByteArrayOutputStream();
+                    pool.encode(new ChoppedInputStream(data, 999), output,
+                            null, 10007, options);
+                    streams.put("pooled stream", output.toByteArray());
+                    output = new ByteArrayOutputStream();
+                    Coder.encodeParallel(new ByteArrayInputStream(data),
+                            output, null, options, data.length + 1, 1);
+                    streams.put("single block", output.toByteArray());
+                    streams.put("incremental",
+                            encodeIncrementally(data, options));
+                    streams.put("output stream",
+                            encodeWithOutputStream(data, options));
+                    final byte[] reference = Coder.encode(data, options);
+                    int mismatches = 0;
+                    for (final Map.Entry<String, byte[]> stream
+                            : streams.entrySet()) {
+                        if (!Arrays.equals(reference, stream.getValue())) {
+                            out.println(name + ": " + stream.getKey()
+                                    + " differs from array encoding");
+                            mismatches++;
+                        }
+                    }
+                    if (!Arrays.equals(data, Coder.decode(reference))) {
+                        out.println(name + ": decoded data differs");
+                        mismatches++;
+                    }
+                    pool.clear();
+                    if (mismatches == 0) {
+                        out.println(String.format("%-36s %10d bytes OK",
+                                name, reference.length));
+                    }
+                    failures += mismatches;
+                }
+            }
+        }
+        return failures;
+    }
+
+    private static byte[] toArray(final ByteBuffer buffer) {
+        final byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final int corpusSize = args.length > 0 ? Integer.parseInt(args[0])
+                : DefaultCorpusSize;
+        if (corpusSize <= 0) {
+            throw new IllegalArgumentException(
+                    "Corpus size has to be positive.");
+        }
+        final int failures = check(System.out, corpusSize);
+        if (failures == 0) {
+            System.out.println("All checks passed.");
+        } else {
+            System.out.println(failures + " checks failed.");
+            System.exit(1);
+        }
+    }
+}